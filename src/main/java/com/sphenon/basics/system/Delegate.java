@@ -24,7 +24,6 @@ import com.sphenon.basics.exception.*;
 import java.lang.reflect.*;
 import java.util.Vector;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.HashMap;
 
 public class Delegate<TargetType> implements InvocationHandler {
@@ -32,9 +31,22 @@ public class Delegate<TargetType> implements InvocationHandler {
     protected TargetType target;
     protected Interceptor[] interceptors;
 
+    // if all interceptors are StaticInterceptors, the shared table of
+    // the proxy class, see ProxyDispatch; null: matching per invocation
+    protected ProxyDispatch                        proxy_dispatch;
+    protected volatile HashMap<Method,Interceptor> dispatch_table;
+
     protected Delegate (TargetType target, Interceptor... interceptors) {
-        this.target           = target;
-        this.interceptors     = interceptors;
+        this(target, (ProxyDispatch) null, interceptors);
+    }
+
+    protected Delegate (TargetType target, ProxyDispatch proxy_dispatch, Interceptor... interceptors) {
+        this.target         = target;
+        this.interceptors   = interceptors;
+        this.proxy_dispatch = proxy_dispatch;
+        if (proxy_dispatch != null && target != null) {
+            this.dispatch_table = proxy_dispatch.getDispatchTable(target.getClass(), interceptors);
+        }
     }
 
     public TargetType getTarget() {
@@ -50,6 +62,9 @@ public class Delegate<TargetType> implements InvocationHandler {
        Replace target only with target with identical interface set.
      */
     public void setTarget(TargetType target) {
+        if (this.proxy_dispatch != null && target != null && (this.target == null || target.getClass() != this.target.getClass())) {
+            this.dispatch_table = this.proxy_dispatch.getDispatchTable(target.getClass(), this.interceptors);
+        }
         this.target = target;
     }
 
@@ -81,34 +96,180 @@ public class Delegate<TargetType> implements InvocationHandler {
     static protected Class[] empty_array = new Class[0];
 
     static protected long count;
-    static protected Map<Object,Constructor> proxy_class_constructors;
-    // synchronized
+
+    /*
+        Proxy constructors per target class (ClassValue, so lookups are
+        lock free and entries go away with their class loader), and per
+        target class a small copy-on-write table for combinations of
+        additional interfaces, compared element-wise by identity; so
+        lookups do not allocate.
+    */
+    static protected class ProxyConstructors {
+        protected Class                 target_class;
+        protected volatile Constructor  plain;
+        protected volatile Class[][]    additional_interfaces = new Class[0][];
+        protected volatile Constructor[] constructors = new Constructor[0];
+
+        protected ProxyConstructors(Class target_class) {
+            this.target_class = target_class;
+        }
+
+        protected Constructor get(Class single_interface, Class[] additional_interfaces) {
+            if (single_interface == null && (additional_interfaces == null || additional_interfaces.length == 0)) {
+                Constructor constructor = this.plain;
+                if (constructor == null) {
+                    // concurrent creation is harmless, Proxy returns the same class
+                    this.plain = constructor = getProxyConstructor(this.target_class, empty_array);
+                }
+                return constructor;
+            }
+            Class[][]     keys         = this.additional_interfaces;
+            Constructor[] constructors = this.constructors;
+            for (int i=0; i<keys.length; i++) {
+                if (matches(keys[i], single_interface, additional_interfaces)) {
+                    return constructors[i];
+                }
+            }
+            synchronized (this) {
+                keys         = this.additional_interfaces;
+                constructors = this.constructors;
+                for (int i=0; i<keys.length; i++) {
+                    if (matches(keys[i], single_interface, additional_interfaces)) {
+                        return constructors[i];
+                    }
+                }
+                Class[] key = (single_interface != null ? new Class[] { single_interface } : additional_interfaces.clone());
+                Constructor constructor = getProxyConstructor(this.target_class, key);
+                Class[][]     new_keys         = java.util.Arrays.copyOf(keys, keys.length + 1);
+                Constructor[] new_constructors = java.util.Arrays.copyOf(constructors, constructors.length + 1);
+                new_keys[keys.length]                 = key;
+                new_constructors[constructors.length] = constructor;
+                this.constructors          = new_constructors;
+                this.additional_interfaces = new_keys;
+                return constructor;
+            }
+        }
+
+        static protected boolean matches(Class[] key, Class single_interface, Class[] additional_interfaces) {
+            if (single_interface != null) {
+                return key.length == 1 && key[0] == single_interface;
+            }
+            if (key.length != additional_interfaces.length) { return false; }
+            for (int i=0; i<key.length; i++) {
+                if (key[i] != additional_interfaces[i]) { return false; }
+            }
+            return true;
+        }
+    }
+
+    static protected ClassValue<ProxyConstructors> proxy_constructors = new ClassValue<ProxyConstructors>() {
+        protected ProxyConstructors computeValue(Class<?> target_class) {
+            return new ProxyConstructors(target_class);
+        }
+    };
+
+    static protected final int MAXIMUM_DISPATCH_TABLES = 64;
+
+    /*
+        Dispatch tables for StaticInterceptors per proxy class (ClassValue,
+        like the constructors), and within a proxy class per target class
+        and interceptor set, compared element-wise by identity; built
+        completely when the first delegate of a combination is created
+        and shared read-only by all further ones. Proxy passes its own
+        Method instances, so the tables are keyed by Method.equals, which
+        like Method.hashCode does not allocate.
+    */
+    static protected class ProxyDispatch {
+        protected Method[]                  methods;
+        protected volatile Class[]          target_classes   = new Class[0];
+        protected volatile Interceptor[][]  interceptor_sets = new Interceptor[0][];
+        protected volatile HashMap[]        dispatch_tables  = new HashMap[0];
+
+        protected ProxyDispatch(Class proxy_class) {
+            Vector<Method> methods = new Vector<Method>();
+            try {
+                methods.add(Object.class.getMethod("equals", Object.class));
+                methods.add(Object.class.getMethod("hashCode"));
+                methods.add(Object.class.getMethod("toString"));
+            } catch (NoSuchMethodException nsme) {
+                // should not happen
+                throw new Error(nsme);
+            }
+            for (Class an_interface : proxy_class.getInterfaces()) {
+                for (Method method : an_interface.getMethods()) {
+                    if (Modifier.isStatic(method.getModifiers()) == false) {
+                        methods.add(method);
+                    }
+                }
+            }
+            this.methods = methods.toArray(new Method[methods.size()]);
+        }
+
+        /**
+           Returns null if not all interceptors are StaticInterceptors.
+         */
+        protected HashMap<Method,Interceptor> getDispatchTable(Class target_class, Interceptor[] interceptors) {
+            if (interceptors == null || interceptors.length == 0) { return null; }
+            Class[]         classes = this.target_classes;
+            Interceptor[][] sets    = this.interceptor_sets;
+            HashMap[]       tables  = this.dispatch_tables;
+            for (int i=0; i<sets.length; i++) {
+                if (classes[i] == target_class && matches(sets[i], interceptors)) { return tables[i]; }
+            }
+            for (Interceptor interceptor : interceptors) {
+                if ((interceptor instanceof StaticInterceptor) == false) { return null; }
+            }
+            HashMap<Method,Interceptor> table = new HashMap<Method,Interceptor>();
+            for (Method method : this.methods) {
+                for (Interceptor interceptor : interceptors) {
+                    if (((StaticInterceptor) interceptor).matches(target_class, method)) {
+                        table.put(method, interceptor);
+                    }
+                }
+            }
+            synchronized (this) {
+                if (this.interceptor_sets.length < MAXIMUM_DISPATCH_TABLES) {
+                    int n = this.interceptor_sets.length;
+                    Class[]         new_classes = java.util.Arrays.copyOf(this.target_classes, n + 1);
+                    Interceptor[][] new_sets    = java.util.Arrays.copyOf(this.interceptor_sets, n + 1);
+                    HashMap[]       new_tables  = java.util.Arrays.copyOf(this.dispatch_tables, n + 1);
+                    new_classes[n] = target_class;
+                    new_sets[n]    = interceptors.clone();
+                    new_tables[n]  = table;
+                    this.target_classes   = new_classes;
+                    this.dispatch_tables  = new_tables;
+                    this.interceptor_sets = new_sets;
+                }
+            }
+            return table;
+        }
+
+        static protected boolean matches(Interceptor[] set, Interceptor[] interceptors) {
+            if (set.length != interceptors.length) { return false; }
+            for (int i=0; i<set.length; i++) {
+                if (set[i] != interceptors[i]) { return false; }
+            }
+            return true;
+        }
+    }
+
+    static protected ClassValue<ProxyDispatch> proxy_dispatches = new ClassValue<ProxyDispatch>() {
+        protected ProxyDispatch computeValue(Class<?> proxy_class) {
+            return new ProxyDispatch(proxy_class);
+        }
+    };
+
     static protected<TargetType> Constructor<TargetType> getProxyClassContructor(Class<TargetType> target_class, Class... additional_interfaces) {
-        Constructor<TargetType> constructor = null;
-
-        // TO BE IMPROVED
-        // cache should work per combination of Class & additional_interfaces
-        // i.e. create util-key-class with equals and hashcode
-        // class ProxyClassKey { protected Class[] classes; ...
-        if (proxy_class_constructors == null) {
-            proxy_class_constructors = new HashMap<Object,Constructor>();
-        }
-        Object key = (additional_interfaces == null ? target_class : new ProxyClassKey(target_class, additional_interfaces));
-        constructor = proxy_class_constructors.get(key);
-        if (constructor == null) {
-            constructor = getProxyConstructor(target_class, additional_interfaces);
-            proxy_class_constructors.put(key, constructor);
-        }
-        return constructor;
+        return (Constructor<TargetType>) proxy_constructors.get(target_class).get(null, additional_interfaces);
     }
 
     static public<TargetType> TargetType create(TargetType target, Interceptor... interceptors) {
-        Constructor<TargetType> constructor = getProxyClassContructor((Class<TargetType>) target.getClass());
+        Constructor<TargetType> constructor = (Constructor<TargetType>) proxy_constructors.get(target.getClass()).get(null, null);
         return createInstance(constructor, target, interceptors);
     }
 
     static public<TargetType> TargetType create(TargetType target, Class additional_interface, Interceptor... interceptors) {
-        Constructor<TargetType> constructor = getProxyClassContructor((Class<TargetType>) target.getClass(), new Class[] { additional_interface });
+        Constructor<TargetType> constructor = (Constructor<TargetType>) proxy_constructors.get(target.getClass()).get(additional_interface, null);
         return createInstance(constructor, target, interceptors);
     }
 
@@ -135,7 +296,8 @@ public class Delegate<TargetType> implements InvocationHandler {
         
     static public<TargetType> TargetType createInstance(Constructor proxy_constructor, TargetType target, Interceptor... interceptors) {
         try {
-            return (TargetType) proxy_constructor.newInstance(new Object[] { new Delegate<TargetType>(target, interceptors) });
+            ProxyDispatch proxy_dispatch = (interceptors == null || interceptors.length == 0) ? null : proxy_dispatches.get(proxy_constructor.getDeclaringClass());
+            return (TargetType) proxy_constructor.newInstance(new Object[] { new Delegate<TargetType>(target, proxy_dispatch, interceptors) });
         } catch (InstantiationException ie) {
             // should not happen
             throw new Error(ie);
@@ -150,19 +312,33 @@ public class Delegate<TargetType> implements InvocationHandler {
 
     public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
         Interceptor interceptor = null;
-        if (interceptors != null) {
+        HashMap<Method,Interceptor> dispatch_table = this.dispatch_table;
+        if (dispatch_table != null) {
+            interceptor = dispatch_table.get(method);
+        } else if (interceptors != null) {
             for (Interceptor interceptor_candidate : interceptors) {
                 if (interceptor_candidate.matches(target, method, arguments)) {
                     interceptor = interceptor_candidate;
                 }
             }
         }
+        if (interceptor != null) {
+            return this.invoke(proxy, interceptor, method, arguments);
+        }
         try {
-            if (interceptor != null) {
-                return interceptor.handleInvocation(proxy, this, target, method, arguments);
-            } else {
-                return method.invoke(target, arguments);
-            }
+            return method.invoke(target, arguments);
+        } catch (InvocationTargetException ite) {
+            throw ite.getTargetException();
+        }
+    }
+
+    /**
+       Invocation with the interceptor already determined, used by
+       classes generated by DelegateGenerator.
+     */
+    protected Object invoke(Object proxy, Interceptor interceptor, Method method, Object[] arguments) throws Throwable {
+        try {
+            return interceptor.handleInvocation(proxy, this, target, method, arguments);
         } catch (InvocationTargetException ite) {
             throw ite.getTargetException();
         }
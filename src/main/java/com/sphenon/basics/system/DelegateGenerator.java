@@ -0,0 +1,518 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import java.lang.reflect.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Vector;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+   Alternative to Delegate.create, which instead of a
+   java.lang.reflect.Proxy generates a class per target class that
+   implements the same interfaces and calls the target directly, without
+   boxing and reflection; only methods matched by an interceptor are
+   routed through Delegate.invoke.
+
+   Requires all interceptors to be StaticInterceptors, since matching is
+   done once per method; falls back to Delegate.create otherwise, or if
+   the interfaces of the target are not accessible from this package.
+
+   The target is read from the Delegate on each call, so
+   Delegate.setTarget affects direct and intercepted calls alike.
+
+   Differences to Proxy: checked exceptions thrown by interceptors and
+   not declared by the interface method are passed through as they are,
+   instead of being wrapped in an UndeclaredThrowableException.
+ */
+public class DelegateGenerator {
+
+    /*
+        Generated class, version 49 (no stack map frames needed):
+
+          final class DelegateGenerator$Generated implements <interfaces> {
+              private final Delegate      delegate;
+              private final Interceptor[] dispatch;   // per method, null: direct call
+              private final Method[]      methods;
+
+              <type> m_k(<arguments>) {
+                  if (dispatch[k] == null) {
+                      return ((<interface>) delegate.target).m_k(<arguments>);
+                  }
+                  return (<type>) delegate.invoke(this, dispatch[k], methods[k], new Object[] { <boxed arguments> });
+              }
+          }
+    */
+
+    static protected final String DELEGATE      = "com/sphenon/basics/system/Delegate";
+    static protected final String INTERCEPTOR   = "com/sphenon/basics/system/Interceptor";
+    static protected final String GENERATED     = "com/sphenon/basics/system/DelegateGenerator$Generated";
+    static protected final String OBJECT        = "java/lang/Object";
+    static protected final String CONSTRUCTOR   = "(L" + DELEGATE + ";[L" + INTERCEPTOR + ";[Ljava/lang/reflect/Method;)V";
+    static protected final String INVOKE        = "(Ljava/lang/Object;L" + INTERCEPTOR + ";Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+    static protected final int    MAXIMUM_DISPATCH_TABLES = 64;
+
+    static protected class GeneratedClass {
+        protected Class         target_class;
+        protected Method[]      methods;
+        protected MethodHandle  constructor;
+
+        // copy-on-write, interceptor sets compared element-wise by identity
+        protected volatile Interceptor[][] interceptor_sets = new Interceptor[0][];
+        protected volatile Interceptor[][] dispatch_tables  = new Interceptor[0][];
+
+        protected Interceptor[] getDispatchTable(Interceptor[] interceptors) {
+            Interceptor[][] sets   = this.interceptor_sets;
+            Interceptor[][] tables = this.dispatch_tables;
+            for (int i=0; i<sets.length; i++) {
+                if (matches(sets[i], interceptors)) { return tables[i]; }
+            }
+            Interceptor[] table = new Interceptor[this.methods.length];
+            for (int m=0; m<this.methods.length; m++) {
+                for (Interceptor interceptor : interceptors) {
+                    if (((StaticInterceptor) interceptor).matches(this.target_class, this.methods[m])) {
+                        table[m] = interceptor;
+                    }
+                }
+            }
+            synchronized (this) {
+                if (this.interceptor_sets.length < MAXIMUM_DISPATCH_TABLES) {
+                    Interceptor[][] new_sets   = java.util.Arrays.copyOf(this.interceptor_sets, this.interceptor_sets.length + 1);
+                    Interceptor[][] new_tables = java.util.Arrays.copyOf(this.dispatch_tables, this.dispatch_tables.length + 1);
+                    new_sets[new_sets.length - 1]     = interceptors.clone();
+                    new_tables[new_tables.length - 1] = table;
+                    this.dispatch_tables  = new_tables;
+                    this.interceptor_sets = new_sets;
+                }
+            }
+            return table;
+        }
+
+        static protected boolean matches(Interceptor[] set, Interceptor[] interceptors) {
+            if (set.length != interceptors.length) { return false; }
+            for (int i=0; i<set.length; i++) {
+                if (set[i] != interceptors[i]) { return false; }
+            }
+            return true;
+        }
+    }
+
+    static protected final GeneratedClass not_generatable = new GeneratedClass();
+
+    static protected ClassValue<GeneratedClass> generated_classes = new ClassValue<GeneratedClass>() {
+        protected GeneratedClass computeValue(Class<?> target_class) {
+            try {
+                GeneratedClass generated_class = generate(target_class);
+                return generated_class == null ? not_generatable : generated_class;
+            } catch (Throwable t) {
+                return not_generatable;
+            }
+        }
+    };
+
+    static public<TargetType> TargetType create(TargetType target, Interceptor... interceptors) {
+        if (interceptors != null) {
+            for (Interceptor interceptor : interceptors) {
+                if ((interceptor instanceof StaticInterceptor) == false) {
+                    return Delegate.create(target, interceptors);
+                }
+            }
+        } else {
+            interceptors = new Interceptor[0];
+        }
+        GeneratedClass generated_class = generated_classes.get(target.getClass());
+        if (generated_class == not_generatable) {
+            return Delegate.create(target, interceptors);
+        }
+        try {
+            return (TargetType) (Object) generated_class.constructor.invokeExact(new Delegate<TargetType>(target, interceptors), generated_class.getDispatchTable(interceptors), generated_class.methods);
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // should not happen
+            throw new Error(t);
+        }
+    }
+
+    /**
+       Returns true if instances for the given target class are generated
+       classes instead of proxies.
+     */
+    static public boolean isGeneratable(Class target_class) {
+        return generated_classes.get(target_class) != not_generatable;
+    }
+
+    static protected boolean isAccessible(Class a_class) {
+        while (a_class.isArray()) { a_class = a_class.getComponentType(); }
+        if (a_class.isPrimitive()) { return true; }
+        if (Modifier.isPublic(a_class.getModifiers()) == false) { return false; }
+        if (a_class.getModule().isExported(a_class.getPackageName(), DelegateGenerator.class.getModule()) == false) { return false; }
+        try {
+            return Class.forName(a_class.getName(), false, DelegateGenerator.class.getClassLoader()) == a_class;
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        }
+    }
+
+    static protected String getDescriptor(Class a_class) {
+        if (a_class == void.class)    { return "V"; }
+        if (a_class == boolean.class) { return "Z"; }
+        if (a_class == byte.class)    { return "B"; }
+        if (a_class == char.class)    { return "C"; }
+        if (a_class == short.class)   { return "S"; }
+        if (a_class == int.class)     { return "I"; }
+        if (a_class == long.class)    { return "J"; }
+        if (a_class == float.class)   { return "F"; }
+        if (a_class == double.class)  { return "D"; }
+        if (a_class.isArray())        { return a_class.getName().replace('.', '/'); }
+        return "L" + a_class.getName().replace('.', '/') + ";";
+    }
+
+    static protected String getDescriptor(Method method) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Class parameter_type : method.getParameterTypes()) {
+            descriptor.append(getDescriptor(parameter_type));
+        }
+        descriptor.append(')').append(getDescriptor(method.getReturnType()));
+        return descriptor.toString();
+    }
+
+    static protected String getInternalName(Class a_class) {
+        return a_class.isArray() ? getDescriptor(a_class) : a_class.getName().replace('.', '/');
+    }
+
+    static protected GeneratedClass generate(Class target_class) throws Exception {
+        Vector<Class> interfaces = Delegate.addInterfaces(target_class, new Vector<Class>(), new HashSet<Class>());
+        for (Class an_interface : interfaces) {
+            if (isAccessible(an_interface) == false) { return null; }
+        }
+
+        // Object methods first, so interfaces redeclaring them do not
+        // produce duplicates
+        LinkedHashMap<String,Method> methods = new LinkedHashMap<String,Method>();
+        for (Method method : new Method[] { Object.class.getMethod("equals", Object.class), Object.class.getMethod("hashCode"), Object.class.getMethod("toString") }) {
+            methods.put(method.getName() + getDescriptor(method), method);
+        }
+        HashMap<String,Method> by_signature = new HashMap<String,Method>();
+        for (Class an_interface : interfaces) {
+            for (Method method : an_interface.getMethods()) {
+                if (Modifier.isStatic(method.getModifiers())) { continue; }
+                String descriptor = getDescriptor(method);
+                String parameters = method.getName() + descriptor.substring(0, descriptor.indexOf(')') + 1);
+                Method existing = by_signature.get(parameters);
+                if (existing != null && existing.getReturnType() != method.getReturnType()) {
+                    // covariant returns would need bridge methods
+                    return null;
+                }
+                by_signature.put(parameters, method);
+                String key = method.getName() + descriptor;
+                if (methods.containsKey(key)) { continue; }
+                for (Class parameter_type : method.getParameterTypes()) {
+                    if (isAccessible(parameter_type) == false) { return null; }
+                }
+                if (isAccessible(method.getReturnType()) == false) { return null; }
+                methods.put(key, method);
+            }
+        }
+
+        Method[] method_array = methods.values().toArray(new Method[methods.size()]);
+        byte[] bytes = generateClassFile(interfaces, method_array);
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        GeneratedClass generated_class = new GeneratedClass();
+        generated_class.target_class = target_class;
+        generated_class.methods      = method_array;
+        generated_class.constructor  = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Delegate.class, Interceptor[].class, Method[].class))
+                                             .asType(MethodType.methodType(Object.class, Delegate.class, Interceptor[].class, Method[].class));
+        return generated_class;
+    }
+
+    static protected class ConstantPool {
+        protected ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        protected DataOutputStream        out   = new DataOutputStream(bytes);
+        protected HashMap<String,Integer> indices = new HashMap<String,Integer>();
+        protected int                     count = 1;
+
+        protected int add(String key, int tag, String utf8, int first, int second) throws IOException {
+            Integer index = this.indices.get(key);
+            if (index != null) { return index; }
+            this.out.writeByte(tag);
+            if (utf8 != null) {
+                this.out.writeUTF(utf8);
+            } else {
+                this.out.writeShort(first);
+                if (second != -1) { this.out.writeShort(second); }
+            }
+            this.indices.put(key, this.count);
+            return this.count++;
+        }
+
+        protected int utf8(String value) throws IOException {
+            return this.add("U" + value, 1, value, 0, -1);
+        }
+
+        protected int classReference(String internal_name) throws IOException {
+            int name = this.utf8(internal_name);
+            return this.add("C" + internal_name, 7, null, name, -1);
+        }
+
+        protected int nameAndType(String name, String descriptor) throws IOException {
+            int name_index       = this.utf8(name);
+            int descriptor_index = this.utf8(descriptor);
+            return this.add("N" + name + " " + descriptor, 12, null, name_index, descriptor_index);
+        }
+
+        protected int member(int tag, String owner, String name, String descriptor) throws IOException {
+            int owner_index = this.classReference(owner);
+            int nat_index   = this.nameAndType(name, descriptor);
+            return this.add(tag + owner + " " + name + " " + descriptor, tag, null, owner_index, nat_index);
+        }
+    }
+
+    static protected byte[] generateClassFile(Vector<Class> interfaces, Method[] methods) throws IOException {
+        ConstantPool pool = new ConstantPool();
+
+        int this_class  = pool.classReference(GENERATED);
+        int super_class = pool.classReference(OBJECT);
+        int[] interface_indices = new int[interfaces.size()];
+        for (int i=0; i<interface_indices.length; i++) {
+            interface_indices[i] = pool.classReference(getInternalName(interfaces.get(i)));
+        }
+
+        String[][] fields = {
+            { "delegate", "L" + DELEGATE + ";" },
+            { "dispatch", "[L" + INTERCEPTOR + ";" },
+            { "methods",  "[Ljava/lang/reflect/Method;" }
+        };
+        int[] field_references = new int[fields.length];
+        int[] field_names       = new int[fields.length];
+        int[] field_descriptors = new int[fields.length];
+        for (int f=0; f<fields.length; f++) {
+            field_references[f]  = pool.member(9, GENERATED, fields[f][0], fields[f][1]);
+            field_names[f]       = pool.utf8(fields[f][0]);
+            field_descriptors[f] = pool.utf8(fields[f][1]);
+        }
+        int code = pool.utf8("Code");
+
+        ByteArrayOutputStream method_bytes = new ByteArrayOutputStream();
+        DataOutputStream      method_out   = new DataOutputStream(method_bytes);
+
+        // constructor
+        {
+            ByteArrayOutputStream c = new ByteArrayOutputStream();
+            DataOutputStream      o = new DataOutputStream(c);
+            o.writeByte(0x2a);                                                  // aload_0
+            o.writeByte(0xb7); o.writeShort(pool.member(10, OBJECT, "<init>", "()V")); // invokespecial
+            for (int f=0; f<fields.length; f++) {
+                o.writeByte(0x2a);                                              // aload_0
+                o.writeByte(0x19); o.writeByte(f + 1);                          // aload
+                o.writeByte(0xb5); o.writeShort(field_references[f]);           // putfield
+            }
+            o.writeByte(0xb1);                                                  // return
+            writeMethod(pool, method_out, code, "<init>", CONSTRUCTOR, c.toByteArray(), 2, 4);
+        }
+
+        int target = pool.member(9, DELEGATE, "target", "Ljava/lang/Object;");
+        int invoke = pool.member(10, DELEGATE, "invoke", INVOKE);
+
+        for (int m=0; m<methods.length; m++) {
+            Method   method          = methods[m];
+            Class[]  parameter_types = method.getParameterTypes();
+            Class    return_type     = method.getReturnType();
+            int      slots           = 1;
+            for (Class parameter_type : parameter_types) {
+                slots += (parameter_type == long.class || parameter_type == double.class) ? 2 : 1;
+            }
+
+            ByteArrayOutputStream c = new ByteArrayOutputStream();
+            DataOutputStream      o = new DataOutputStream(c);
+
+            // if (dispatch[m] != null) goto intercepted
+            o.writeByte(0x2a);
+            o.writeByte(0xb4); o.writeShort(field_references[1]);
+            o.writeByte(0x11); o.writeShort(m);
+            o.writeByte(0x32);
+            int branch = c.size();
+            o.writeByte(0xc7); o.writeShort(0);
+
+            // direct call
+            Class   owner        = method.getDeclaringClass();
+            boolean is_interface = owner.isInterface();
+            o.writeByte(0x2a);
+            o.writeByte(0xb4); o.writeShort(field_references[0]);
+            o.writeByte(0xb4); o.writeShort(target);
+            if (owner != Object.class) {
+                o.writeByte(0xc0); o.writeShort(pool.classReference(getInternalName(owner)));
+            }
+            int slot = 1;
+            for (Class parameter_type : parameter_types) {
+                slot = writeLoad(o, parameter_type, slot);
+            }
+            if (is_interface) {
+                o.writeByte(0xb9); o.writeShort(pool.member(11, getInternalName(owner), method.getName(), getDescriptor(method))); o.writeByte(slots); o.writeByte(0);
+            } else {
+                o.writeByte(0xb6); o.writeShort(pool.member(10, getInternalName(owner), method.getName(), getDescriptor(method)));
+            }
+            writeReturn(o, return_type);
+
+            // intercepted: delegate.invoke(this, dispatch[m], methods[m], new Object[] { ... })
+            int intercepted = c.size();
+            o.writeByte(0x2a);
+            o.writeByte(0xb4); o.writeShort(field_references[0]);
+            o.writeByte(0x2a);
+            o.writeByte(0x2a);
+            o.writeByte(0xb4); o.writeShort(field_references[1]);
+            o.writeByte(0x11); o.writeShort(m);
+            o.writeByte(0x32);
+            o.writeByte(0x2a);
+            o.writeByte(0xb4); o.writeShort(field_references[2]);
+            o.writeByte(0x11); o.writeShort(m);
+            o.writeByte(0x32);
+            o.writeByte(0x11); o.writeShort(parameter_types.length);
+            o.writeByte(0xbd); o.writeShort(pool.classReference(OBJECT));
+            slot = 1;
+            for (int p=0; p<parameter_types.length; p++) {
+                o.writeByte(0x59);                                              // dup
+                o.writeByte(0x11); o.writeShort(p);
+                slot = writeLoad(o, parameter_types[p], slot);
+                writeBox(pool, o, parameter_types[p]);
+                o.writeByte(0x53);                                              // aastore
+            }
+            o.writeByte(0xb6); o.writeShort(invoke);
+            if (return_type == void.class) {
+                o.writeByte(0x57);                                              // pop
+            } else {
+                writeUnbox(pool, o, return_type);
+            }
+            writeReturn(o, return_type);
+
+            byte[] code_bytes = c.toByteArray();
+            int offset = intercepted - branch;
+            code_bytes[branch + 1] = (byte) (offset >> 8);
+            code_bytes[branch + 2] = (byte) offset;
+
+            writeMethod(pool, method_out, code, method.getName(), getDescriptor(method), code_bytes, slots + 8, slots);
+        }
+
+        ByteArrayOutputStream class_bytes = new ByteArrayOutputStream();
+        DataOutputStream      out         = new DataOutputStream(class_bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(pool.count);
+        out.write(pool.bytes.toByteArray());
+        out.writeShort(0x0031);                                                 // public final super
+        out.writeShort(this_class);
+        out.writeShort(super_class);
+        out.writeShort(interface_indices.length);
+        for (int interface_index : interface_indices) {
+            out.writeShort(interface_index);
+        }
+        out.writeShort(fields.length);
+        for (int f=0; f<fields.length; f++) {
+            out.writeShort(0x0012);                                             // private final
+            out.writeShort(field_names[f]);
+            out.writeShort(field_descriptors[f]);
+            out.writeShort(0);
+        }
+        out.writeShort(methods.length + 1);
+        out.write(method_bytes.toByteArray());
+        out.writeShort(0);
+        return class_bytes.toByteArray();
+    }
+
+    /*
+        All constant pool entries have to be created before the pool is
+        written, i.e. while generating fields and methods.
+    */
+    static protected void writeMethod(ConstantPool pool, DataOutputStream out, int code, String name, String descriptor, byte[] code_bytes, int max_stack, int max_locals) throws IOException {
+        out.writeShort(0x0001);                                                 // public
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(code);
+        out.writeInt(12 + code_bytes.length);
+        out.writeShort(max_stack);
+        out.writeShort(max_locals);
+        out.writeInt(code_bytes.length);
+        out.write(code_bytes);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    static protected int writeLoad(DataOutputStream o, Class type, int slot) throws IOException {
+        int opcode;
+        if (type == long.class)         { opcode = 0x16; }
+        else if (type == float.class)   { opcode = 0x17; }
+        else if (type == double.class)  { opcode = 0x18; }
+        else if (type.isPrimitive())    { opcode = 0x15; }
+        else                            { opcode = 0x19; }
+        if (slot > 255) {
+            o.writeByte(0xc4); o.writeByte(opcode); o.writeShort(slot);         // wide
+        } else {
+            o.writeByte(opcode); o.writeByte(slot);
+        }
+        return slot + ((type == long.class || type == double.class) ? 2 : 1);
+    }
+
+    static protected void writeReturn(DataOutputStream o, Class type) throws IOException {
+        if (type == void.class)         { o.writeByte(0xb1); }
+        else if (type == long.class)    { o.writeByte(0xad); }
+        else if (type == float.class)   { o.writeByte(0xae); }
+        else if (type == double.class)  { o.writeByte(0xaf); }
+        else if (type.isPrimitive())    { o.writeByte(0xac); }
+        else                            { o.writeByte(0xb0); }
+    }
+
+    static protected Class getWrapper(Class type) {
+        if (type == boolean.class) { return Boolean.class; }
+        if (type == byte.class)    { return Byte.class; }
+        if (type == char.class)    { return Character.class; }
+        if (type == short.class)   { return Short.class; }
+        if (type == int.class)     { return Integer.class; }
+        if (type == long.class)    { return Long.class; }
+        if (type == float.class)   { return Float.class; }
+        return Double.class;
+    }
+
+    static protected void writeBox(ConstantPool pool, DataOutputStream o, Class type) throws IOException {
+        if (type.isPrimitive() == false) { return; }
+        String wrapper = getInternalName(getWrapper(type));
+        o.writeByte(0xb8); o.writeShort(pool.member(10, wrapper, "valueOf", "(" + getDescriptor(type) + ")L" + wrapper + ";"));
+    }
+
+    static protected void writeUnbox(ConstantPool pool, DataOutputStream o, Class type) throws IOException {
+        if (type == Object.class) { return; }
+        if (type.isPrimitive() == false) {
+            o.writeByte(0xc0); o.writeShort(pool.classReference(getInternalName(type)));
+            return;
+        }
+        String wrapper = getInternalName(getWrapper(type));
+        o.writeByte(0xc0); o.writeShort(pool.classReference(wrapper));
+        o.writeByte(0xb6); o.writeShort(pool.member(10, wrapper, type.getName() + "Value", "()" + getDescriptor(type)));
+    }
+}
@@ -0,0 +1,599 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   Copies a file or a folder tree, with the include/exclude semantics of
+   FileUtilities.copy:
+
+     path    matched against the path relative to the source ("/a/b"),
+             non matching entries are skipped completely
+     file    matched against the name of files
+     folder  matched against the name of folders; only controls whether
+             the (possibly empty) target folder is created, the folder is
+             descended into anyway and target folders of copied files
+             are always created
+
+   Folders are traversed in a fork/join pool of 'Parallelism' threads
+   (default: number of processors), files are copied in a bounded pool
+   of 'IOThreads' threads (default: twice the parallelism); both pools
+   are shared by all copies. Without parallel copying, or with a
+   parallelism of 1, everything runs in the calling thread.
+
+   Each entry is examined with a single attribute read, expressions are
+   evaluated via RegexpFilter.
+
+   Incremental copies (setComparison, default None) skip files whose
+   target is already up to date:
+
+     SizeAndTime  same size and modification time; copied files get the
+                  modification time of their source
+     Content      same size and same digest ('DigestAlgorithm', default
+                  SHA-256); with a manifest file, digests of unchanged
+                  files (same size and modification time as recorded)
+                  are taken from the manifest instead of being computed
+
+   With setDeleteExtraneous target entries without a source entry of
+   the same name are deleted, unless excluded by the path expressions.
+ */
+public class FileTreeCopy {
+
+    static final public Class _class = FileTreeCopy.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class); };
+
+    protected File    source;
+    protected File    target;
+    protected String  base_path;
+    protected RegexpFilter folder_filter;
+    protected RegexpFilter file_filter;
+    protected RegexpFilter path_filter;
+
+    protected boolean parallel;
+
+    public enum Comparison { None, SizeAndTime, Content };
+
+    protected Comparison comparison;
+    protected boolean    delete_extraneous;
+    protected File       manifest_file;
+    protected String     digest_algorithm;
+
+    /*
+        per relative path: size and modification time of the source, the
+        digest of its content and the modification time of the target
+        written from it
+    */
+    protected class ManifestEntry {
+        protected long   source_size;
+        protected long   source_time;
+        protected long   target_time;
+        protected String digest;
+
+        protected ManifestEntry(long source_size, long source_time, long target_time, String digest) {
+            this.source_size = source_size;
+            this.source_time = source_time;
+            this.target_time = target_time;
+            this.digest      = digest;
+        }
+    }
+
+    protected ConcurrentHashMap<String,ManifestEntry> manifest;
+    protected ConcurrentHashMap<String,ManifestEntry> new_manifest;
+
+    protected LongAdder file_count   = new LongAdder();
+    protected LongAdder folder_count = new LongAdder();
+    protected LongAdder byte_count   = new LongAdder();
+    protected LongAdder skip_count   = new LongAdder();
+    protected LongAdder delete_count = new LongAdder();
+    protected long      elapsed_nanos;
+
+    protected AtomicReference<Throwable> failure;
+    protected ThreadPoolExecutor         io_executor;
+
+    // file copies submitted to the I/O pool and not yet finished
+    protected long   pending_files;
+    protected Object pending_lock = new Object();
+
+    static protected ForkJoinPool       folder_pool;
+    static protected ThreadPoolExecutor io_pool;
+
+    static synchronized protected ForkJoinPool getFolderPool(CallContext context) {
+        if (folder_pool == null) {
+            int parallelism = config.get(context, "Parallelism", Runtime.getRuntime().availableProcessors());
+            int io_threads  = config.get(context, "IOThreads", 2 * parallelism);
+            folder_pool = new ForkJoinPool(Math.max(1, parallelism));
+            io_pool     = new ThreadPoolExecutor(io_threads, io_threads, 10, TimeUnit.SECONDS,
+                                                 new ArrayBlockingQueue<Runnable>(64 * io_threads),
+                                                 runnable -> { Thread thread = new Thread(runnable, "FileTreeCopy I/O"); thread.setDaemon(true); return thread; },
+                                                 new ThreadPoolExecutor.CallerRunsPolicy());
+            io_pool.allowCoreThreadTimeOut(true);
+        }
+        return folder_pool;
+    }
+
+    public FileTreeCopy(CallContext context, File source, File target, String folder_include_regexp, String folder_exclude_regexp, String file_include_regexp, String file_exclude_regexp, String path_include_regexp, String path_exclude_regexp) {
+        this(context, source, target, folder_include_regexp, folder_exclude_regexp, file_include_regexp, file_exclude_regexp, path_include_regexp, path_exclude_regexp, "");
+    }
+
+    /**
+       @param base_path prefix of the relative paths matched by the path
+                        expressions, "" for the root of the copy
+     */
+    public FileTreeCopy(CallContext context, File source, File target, String folder_include_regexp, String folder_exclude_regexp, String file_include_regexp, String file_exclude_regexp, String path_include_regexp, String path_exclude_regexp, String base_path) {
+        this(context, source, target, RegexpFilter.create(context, folder_include_regexp, folder_exclude_regexp), RegexpFilter.create(context, file_include_regexp, file_exclude_regexp), RegexpFilter.create(context, path_include_regexp, path_exclude_regexp), base_path);
+    }
+
+    /**
+       @param folder_filter may be null, as the other filters
+     */
+    public FileTreeCopy(CallContext context, File source, File target, RegexpFilter folder_filter, RegexpFilter file_filter, RegexpFilter path_filter, String base_path) {
+        this.source         = source;
+        this.target         = target;
+        this.base_path      = base_path == null ? "" : base_path;
+        this.folder_filter  = folder_filter == null ? RegexpFilter.ACCEPT_ALL : folder_filter;
+        this.file_filter    = file_filter   == null ? RegexpFilter.ACCEPT_ALL : file_filter;
+        this.path_filter    = path_filter   == null ? RegexpFilter.ACCEPT_ALL : path_filter;
+        this.parallel       = config.get(context, "Parallelism", Runtime.getRuntime().availableProcessors()) > 1;
+        this.comparison        = Comparison.None;
+        this.delete_extraneous = false;
+        this.digest_algorithm  = config.get(context, "DigestAlgorithm", "SHA-256");
+    }
+
+    /**
+       If false, the copy runs in the calling thread; otherwise in the
+       shared pools, unless configured with a parallelism of 1.
+     */
+    public void setParallel(CallContext context, boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public void setComparison(CallContext context, Comparison comparison) {
+        this.comparison = comparison;
+    }
+
+    public void setDeleteExtraneous(CallContext context, boolean delete_extraneous) {
+        this.delete_extraneous = delete_extraneous;
+    }
+
+    /**
+       Digest manifest, read before and rewritten after a successful
+       copy; only used with Comparison.Content.
+     */
+    public void setManifestFile(CallContext context, File manifest_file) {
+        this.manifest_file = manifest_file;
+    }
+
+    /**
+       Files up to date and not copied.
+     */
+    public long getSkippedCount(CallContext context) {
+        return this.skip_count.sum();
+    }
+
+    public long getDeletedCount(CallContext context) {
+        return this.delete_count.sum();
+    }
+
+    public long getFileCount(CallContext context) {
+        return this.file_count.sum();
+    }
+
+    public long getFolderCount(CallContext context) {
+        return this.folder_count.sum();
+    }
+
+    public long getByteCount(CallContext context) {
+        return this.byte_count.sum();
+    }
+
+    public long getElapsedMillis(CallContext context) {
+        return this.elapsed_nanos / 1000000;
+    }
+
+    public double getFilesPerSecond(CallContext context) {
+        return this.elapsed_nanos == 0 ? 0.0 : this.file_count.sum() * 1000000000.0 / this.elapsed_nanos;
+    }
+
+    public double getMegaBytesPerSecond(CallContext context) {
+        return this.elapsed_nanos == 0 ? 0.0 : this.byte_count.sum() * 1000000000.0 / this.elapsed_nanos / (1024 * 1024);
+    }
+
+    public boolean copy(CallContext context, boolean throw_exception) {
+        this.failure = new AtomicReference<Throwable>();
+        long started = System.nanoTime();
+
+        if (this.comparison == Comparison.Content) {
+            this.manifest     = new ConcurrentHashMap<String,ManifestEntry>();
+            this.new_manifest = new ConcurrentHashMap<String,ManifestEntry>();
+            if (this.manifest_file != null && this.manifest_file.isFile()) {
+                this.readManifest(context);
+            }
+        }
+
+        if (this.source.isDirectory()) {
+            Folder root = new Folder(this.source.toPath(), this.target, this.base_path);
+            if (this.parallel == false || getFolderPool(context).getParallelism() <= 1) {
+                this.copyFolder(context, root, null);
+            } else {
+                this.io_executor = io_pool;
+                try {
+                    folder_pool.invoke(new FolderTask(context, root));
+                } finally {
+                    this.awaitPendingFiles(context);
+                    this.io_executor = null;
+                }
+            }
+        }
+        if (this.source.isFile()) {
+            try {
+                this.copyFile(context, this.source.toPath(), Files.readAttributes(this.source.toPath(), BasicFileAttributes.class), this.target, null, this.base_path + "/" + this.source.getName());
+            } catch (IOException ioe) {
+                this.failed(ioe);
+            }
+        }
+
+        if (this.manifest_file != null && this.new_manifest != null && this.failure.get() == null) {
+            this.writeManifest(context);
+        }
+
+        this.elapsed_nanos = System.nanoTime() - started;
+
+        if ((notification_level & Notifier.VERBOSE) != 0) {
+            NotificationContext.sendTrace(context, Notifier.VERBOSE, "Copied '%(source)' to '%(target)': %(files) files (%(skipped) up to date, %(deleted) deleted), %(bytes) bytes in %(millis) ms (%(fps) files/s, %(mbps) MB/s)", "source", this.source, "target", this.target, "files", t.s(this.getFileCount(context)), "skipped", t.s(this.getSkippedCount(context)), "deleted", t.s(this.getDeletedCount(context)), "bytes", t.s(this.getByteCount(context)), "millis", t.s(this.getElapsedMillis(context)), "fps", String.format("%.0f", this.getFilesPerSecond(context)), "mbps", String.format("%.1f", this.getMegaBytesPerSecond(context)));
+        }
+
+        Throwable failure = this.failure.get();
+        if (failure == null) {
+            return true;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (throw_exception) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, failure, "Could not copy file");
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+        return false;
+    }
+
+    /*
+        Target folder of a source folder; created once, either because
+        the folder expressions match or on demand when the first file is
+        copied into it.
+    */
+    protected class Folder {
+        protected Path    source;
+        protected File    target;
+        protected String  path;
+        protected volatile boolean exists;
+
+        protected Folder(Path source, File target, String path) {
+            this.source = source;
+            this.target = target;
+            this.path   = path;
+        }
+
+        protected void ensureExists(CallContext context) {
+            if (this.exists == false) {
+                synchronized (this) {
+                    if (this.exists == false) {
+                        SystemCommandUtilities.ensureFolderExists(context, this.target);
+                        this.exists = true;
+                    }
+                }
+            }
+        }
+    }
+
+    protected class FolderTask extends RecursiveAction {
+        protected CallContext context;
+        protected Folder      folder;
+
+        protected FolderTask(CallContext context, Folder folder) {
+            this.context = context;
+            this.folder  = folder;
+        }
+
+        protected void compute() {
+            List<FolderTask> subtasks = new ArrayList<FolderTask>();
+            copyFolder(this.context, this.folder, subtasks);
+            invokeAll(subtasks);
+        }
+    }
+
+    protected void failed(Throwable throwable) {
+        this.failure.compareAndSet(null, throwable);
+    }
+
+    protected void submitFile(CallContext context, Path source_file, BasicFileAttributes source_attributes, File target_file, Folder folder, String path) {
+        synchronized (this.pending_lock) {
+            this.pending_files++;
+        }
+        this.io_executor.execute(() -> {
+            try {
+                this.copyFile(context, source_file, source_attributes, target_file, folder, path);
+            } finally {
+                synchronized (this.pending_lock) {
+                    if (--this.pending_files == 0) { this.pending_lock.notifyAll(); }
+                }
+            }
+        });
+    }
+
+    protected void awaitPendingFiles(CallContext context) {
+        synchronized (this.pending_lock) {
+            while (this.pending_files > 0) {
+                try {
+                    this.pending_lock.wait();
+                } catch (InterruptedException ie) {
+                    this.failed(ie);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+       Copies the files of the folder and handles its subfolders, either
+       recursively or, if subtasks is not null, by adding a task per
+       subfolder.
+     */
+    protected void copyFolder(CallContext context, Folder folder, List<FolderTask> subtasks) {
+        if (this.failure.get() != null) { return; }
+        Set<String> source_names = this.delete_extraneous ? new HashSet<String>() : null;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder.source)) {
+            for (Path source_entry : entries) {
+                if (this.failure.get() != null) { return; }
+                String entry      = source_entry.getFileName().toString();
+                String entry_path = folder.path + "/" + entry;
+                if (source_names != null) { source_names.add(entry); }
+                if (this.path_filter.accepts(entry_path) == false) { continue; }
+
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(source_entry, BasicFileAttributes.class);
+                } catch (NoSuchFileException nsfe) {
+                    continue; // e.g. dangling symbolic link, neither file nor folder
+                }
+
+                File target_entry = new File(folder.target, entry);
+                if (attributes.isRegularFile()) {
+                    if (this.file_filter.accepts(entry)) {
+                        if (this.io_executor != null) {
+                            this.submitFile(context, source_entry, attributes, target_entry, folder, entry_path);
+                        } else {
+                            this.copyFile(context, source_entry, attributes, target_entry, folder, entry_path);
+                        }
+                    }
+                } else if (attributes.isDirectory()) {
+                    Folder subfolder = new Folder(source_entry, target_entry, entry_path);
+                    if (this.folder_filter.accepts(entry)) {
+                        subfolder.ensureExists(context);
+                    }
+                    this.folder_count.increment();
+                    if (subtasks != null) {
+                        subtasks.add(new FolderTask(context, subfolder));
+                    } else {
+                        this.copyFolder(context, subfolder, null);
+                    }
+                }
+            }
+            if (source_names != null && this.failure.get() == null) {
+                this.deleteExtraneous(context, folder, source_names);
+            }
+        } catch (IOException ioe) {
+            this.failed(ioe);
+        } catch (RuntimeException re) {
+            this.failed(re);
+        }
+    }
+
+    protected void deleteExtraneous(CallContext context, Folder folder, Set<String> source_names) throws IOException {
+        Path target_folder = folder.target.toPath();
+        if (Files.isDirectory(target_folder, LinkOption.NOFOLLOW_LINKS) == false) { return; }
+        List<Path> extraneous = new ArrayList<Path>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(target_folder)) {
+            for (Path target_entry : entries) {
+                String entry = target_entry.getFileName().toString();
+                if (    source_names.contains(entry) == false
+                     && this.path_filter.accepts(folder.path + "/" + entry)) {
+                    extraneous.add(target_entry);
+                }
+            }
+        }
+        for (Path target_entry : extraneous) {
+            this.deleteTree(context, target_entry);
+        }
+    }
+
+    /**
+       Deletes the entry and, if it is a folder, its content; symbolic
+       links are deleted, not followed.
+     */
+    protected void deleteTree(CallContext context, Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                delete_count.increment();
+                return FileVisitResult.CONTINUE;
+            }
+            public FileVisitResult postVisitDirectory(Path folder, IOException ioe) throws IOException {
+                if (ioe != null) { throw ioe; }
+                Files.delete(folder);
+                delete_count.increment();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+       Returns true if the target needs not be written; in Content mode
+       also records the manifest entry.
+     */
+    protected boolean isUpToDate(CallContext context, Path source_file, BasicFileAttributes source_attributes, File target_file, String path) throws IOException {
+        if (this.comparison == Comparison.None) { return false; }
+        BasicFileAttributes target_attributes;
+        try {
+            target_attributes = Files.readAttributes(target_file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException nsfe) {
+            return false;
+        }
+        if (target_attributes.isRegularFile() == false || target_attributes.size() != source_attributes.size()) {
+            return false;
+        }
+        long source_time = source_attributes.lastModifiedTime().toMillis();
+        long target_time = target_attributes.lastModifiedTime().toMillis();
+        if (this.comparison == Comparison.SizeAndTime) {
+            return source_time == target_time;
+        }
+
+        ManifestEntry known = this.manifest.get(path);
+        if (known != null && (known.source_size != source_attributes.size() || known.source_time != source_time)) {
+            known = null;
+        }
+        String digest = known != null ? known.digest : this.getDigest(context, source_file);
+        boolean up_to_date =    (known != null && known.target_time == target_time)
+                             || digest.equals(this.getDigest(context, target_file.toPath()));
+        // if not up to date, the target time is set once copied
+        this.new_manifest.put(path, new ManifestEntry(source_attributes.size(), source_time, up_to_date ? target_time : -1, digest));
+        return up_to_date;
+    }
+
+    protected String getDigest(CallContext context, Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(this.digest_algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, nsae, "MessageDigest algorithm '%(algorithm)' not available", "algorithm", this.digest_algorithm);
+            throw (ExceptionConfigurationError) null; // compiler insists
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return StringUtilities.convertToHexString(context, digest.digest());
+    }
+
+    protected void readManifest(CallContext context) {
+        for (String line : FileUtilities.readFile(context, this.manifest_file)) {
+            String[] fields = line.split("\t", 5);
+            if (fields.length != 5) { continue; }
+            this.manifest.put(fields[4], new ManifestEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+        }
+    }
+
+    /*
+        line format: source size, source time, target time, digest, path,
+        separated by tabs; written to a temporary file which then
+        replaces the manifest
+    */
+    protected void writeManifest(CallContext context) {
+        List<String> lines = new ArrayList<String>(this.new_manifest.size());
+        for (java.util.Map.Entry<String,ManifestEntry> entry : this.new_manifest.entrySet()) {
+            ManifestEntry me = entry.getValue();
+            lines.add(me.source_size + "\t" + me.source_time + "\t" + me.target_time + "\t" + me.digest + "\t" + entry.getKey());
+        }
+        File temporary = new File(this.manifest_file.getPath() + ".tmp");
+        FileUtilities.writeFile(context, temporary, lines);
+        try {
+            Files.move(temporary.toPath(), this.manifest_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Could not write copy manifest '%(file)'", "file", this.manifest_file);
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    protected void copyFile(CallContext context, Path source_file, BasicFileAttributes source_attributes, File target_file, Folder folder, String path) {
+        if (this.failure.get() != null) { return; }
+        try {
+            if (this.isUpToDate(context, source_file, source_attributes, target_file, path)) {
+                this.skip_count.increment();
+                return;
+            }
+            if (folder != null) {
+                folder.ensureExists(context);
+            } else {
+                SystemCommandUtilities.ensureParentFolderExists(context, target_file);
+            }
+            try (FileChannel source_channel = FileChannel.open(source_file, StandardOpenOption.READ);
+                 FileChannel target_channel = new FileOutputStream(target_file).getChannel()) {
+                long size     = source_channel.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = source_channel.transferTo(position, size - position, target_channel);
+                    if (transferred <= 0) { break; }
+                    position += transferred;
+                }
+                this.byte_count.add(position);
+            }
+            if (this.comparison == Comparison.SizeAndTime) {
+                Files.setLastModifiedTime(target_file.toPath(), source_attributes.lastModifiedTime());
+            }
+            if (this.comparison == Comparison.Content) {
+                ManifestEntry entry = this.new_manifest.get(path);
+                if (entry == null) {
+                    entry = new ManifestEntry(source_attributes.size(), source_attributes.lastModifiedTime().toMillis(), -1, this.getDigest(context, source_file));
+                    this.new_manifest.put(path, entry);
+                }
+                entry.target_time = target_file.lastModified();
+            }
+            this.file_count.increment();
+        } catch (IOException ioe) {
+            this.failed(ioe);
+        } catch (RuntimeException re) {
+            this.failed(re);
+        }
+    }
+}
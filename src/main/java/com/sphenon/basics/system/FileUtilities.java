@@ -23,8 +23,9 @@ import com.sphenon.basics.customary.*;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.channels.FileChannel;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -33,6 +34,8 @@ import java.util.List;
 import java.util.Vector;
 import java.util.Properties;
 import java.util.regex.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class FileUtilities {
 
@@ -89,6 +92,84 @@ public class FileUtilities {
     }
 
     static public Vector<String> doReadFile(CallContext context, File file, boolean throw_exception, String include_regexp, String exclude_regexp) {
+        return doReadFile(context, file, throw_exception, createLineFilter(context, include_regexp, exclude_regexp));
+    }
+
+    static public Vector<String> readFile(CallContext context, File file, RegexpFilter line_filter) {
+        return doReadFile(context, file, true, line_filter);
+    }
+
+    static public Vector<String> doReadFile(CallContext context, File file, boolean throw_exception, RegexpFilter line_filter) {
+        Vector<String> lines = new Vector<String>();
+        return doReadFile(context, file, throw_exception, StandardCharsets.UTF_8, line_filter, lines::add) ? lines : null;
+    }
+
+    static public Vector<String> doReadStream(CallContext context, InputStream stream, boolean throw_exception, String info) {
+        return doReadStream(context, stream, throw_exception, null, null, info);
+    }
+
+    static public Vector<String> doReadStream(CallContext context, InputStream stream, boolean throw_exception, String include_regexp, String exclude_regexp, String info) {
+        return doReadStream(context, stream, throw_exception, createLineFilter(context, include_regexp, exclude_regexp), info);
+    }
+
+    static public Vector<String> doReadStream(CallContext context, InputStream stream, boolean throw_exception, RegexpFilter line_filter, String info) {
+        Vector<String> lines = new Vector<String>();
+        return doReadStream(context, stream, throw_exception, StandardCharsets.UTF_8, line_filter, lines::add, info) ? lines : null;
+    }
+
+    static public Vector<String> doReadReader(CallContext context, BufferedReader reader, boolean throw_exception, String info) {
+        return doReadReader(context, reader, throw_exception, null, null, info);
+    }
+
+    static public Vector<String> doReadReader(CallContext context, BufferedReader reader, boolean throw_exception, String include_regexp, String exclude_regexp, String info) {
+        return doReadReader(context, reader, throw_exception, createLineFilter(context, include_regexp, exclude_regexp), info);
+    }
+
+    /*
+        The line filter of the String overloads above: lines are kept if
+        they match both expressions, i.e. the exclude expression acts as
+        a second include expression. This is how these overloads always
+        behaved, and callers may depend on it; RegexpFilter overloads
+        exclude lines as the name says.
+    */
+    static protected RegexpFilter createLineFilter(CallContext context, String include_regexp, String exclude_regexp) {
+        if (include_regexp == null || exclude_regexp == null) {
+            return RegexpFilter.create(context, include_regexp == null ? exclude_regexp : include_regexp, null);
+        }
+        final RegexpFilter second = RegexpFilter.create(context, exclude_regexp, null);
+        return new RegexpFilter(context, include_regexp, null) {
+            public boolean accepts(String string) {
+                return super.accepts(string) && second.accepts(string);
+            }
+        };
+    }
+
+    static public Vector<String> doReadReader(CallContext context, BufferedReader reader, boolean throw_exception, RegexpFilter line_filter, String info) {
+        Vector<String> lines = new Vector<String>();
+        return doReadLines(context, reader, throw_exception, line_filter, lines::add, info) ? lines : null;
+    }
+
+    /*
+        Streaming variants: lines accepted by the filter are passed to the
+        consumer one at a time and not kept, so files of any size are
+        read in constant memory. Exceptions thrown by the consumer are
+        passed through; if reading fails, false is returned or, with
+        throw_exception, an exception is thrown.
+    */
+
+    static public void readFile(CallContext context, File file, RegexpFilter line_filter, Consumer<String> line_consumer) {
+        doReadFile(context, file, true, StandardCharsets.UTF_8, line_filter, line_consumer);
+    }
+
+    static public boolean tryReadFile(CallContext context, File file, RegexpFilter line_filter, Consumer<String> line_consumer) {
+        return doReadFile(context, file, false, StandardCharsets.UTF_8, line_filter, line_consumer);
+    }
+
+    static public void readStream(CallContext context, InputStream stream, RegexpFilter line_filter, Consumer<String> line_consumer) {
+        doReadStream(context, stream, true, StandardCharsets.UTF_8, line_filter, line_consumer, "<stream>");
+    }
+
+    static public boolean doReadFile(CallContext context, File file, boolean throw_exception, Charset charset, RegexpFilter line_filter, Consumer<String> line_consumer) {
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(file);
@@ -97,83 +178,88 @@ public class FileUtilities {
                 CustomaryContext.create((Context)context).throwPreConditionViolation(context, fnfe, "Cannot read file '%(filename)'", "filename", file.getPath());
                 throw (ExceptionPreConditionViolation) null; // compiler insists
             } else {
-                return null;
+                return false;
             }
         }
-        return doReadStream(context, fis, throw_exception, include_regexp, exclude_regexp, file.getPath());
+        return doReadStream(context, fis, throw_exception, charset, line_filter, line_consumer, file.getPath());
     }
 
-    static public Vector<String> doReadStream(CallContext context, InputStream stream, boolean throw_exception, String info) {
-        return doReadStream(context, stream, throw_exception, null, null, info);
+    static public boolean doReadStream(CallContext context, InputStream stream, boolean throw_exception, Charset charset, RegexpFilter line_filter, Consumer<String> line_consumer, String info) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, charset), 65536);
+        return doReadLines(context, reader, throw_exception, line_filter, line_consumer, info);
     }
 
-    static public Vector<String> doReadStream(CallContext context, InputStream stream, boolean throw_exception, String include_regexp, String exclude_regexp, String info) {
+    /**
+       Closes the reader in any case.
+     */
+    static public boolean doReadLines(CallContext context, BufferedReader reader, boolean throw_exception, RegexpFilter line_filter, Consumer<String> line_consumer, String info) {
         try {
-            InputStreamReader isr = new InputStreamReader(stream, "UTF-8");
-            BufferedReader br = new BufferedReader(isr);
-
-            Vector<String> lines = doReadReader(context, br, throw_exception, include_regexp, exclude_regexp, info);
-
-            isr.close();
-            stream.close();
-
-            return lines;
-
-        } catch (UnsupportedEncodingException uee) {
-            if (throw_exception) {
-                CustomaryContext.create((Context)context).throwPreConditionViolation(context, uee, "Cannot read from '%(info)'", "info", info);
-                throw (ExceptionPreConditionViolation) null; // compiler insists
-            } else {
-                return null;
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int len = line.length();
+                    line = ((len > 0 && line.charAt(len - 1) == '\n') ? line.substring(0, len - 1) : line);
+                    if (line_filter == null || line_filter.accepts(line)) {
+                        line_consumer.accept(line);
+                    }
+                }
+            } finally {
+                reader.close();
             }
+            return true;
         } catch (IOException ioe) {
             if (throw_exception) {
                 CustomaryContext.create((Context)context).throwPreConditionViolation(context, ioe, "Cannot read from '%(info)'", "info", info);
                 throw (ExceptionPreConditionViolation) null; // compiler insists
             } else {
-                return null;
+                return false;
             }
         }
     }
 
-    static public Vector<String> doReadReader(CallContext context, BufferedReader reader, boolean throw_exception, String info) {
-        return doReadReader(context, reader, throw_exception, null, null, info);
+    /**
+       Lines of the file accepted by the filter, read lazily; the stream
+       must be closed to close the file (e.g. try-with-resources). Read
+       errors while streaming surface as UncheckedIOException.
+     */
+    static public Stream<String> streamLines(CallContext context, File file, RegexpFilter line_filter) {
+        return streamLines(context, file, StandardCharsets.UTF_8, line_filter);
     }
 
-    static public Vector<String> doReadReader(CallContext context, BufferedReader reader, boolean throw_exception, String include_regexp, String exclude_regexp, String info) {
+    static public Stream<String> streamLines(CallContext context, File file, Charset charset, RegexpFilter line_filter) {
         try {
+            return streamLines(context, new FileInputStream(file), charset, line_filter);
+        } catch (FileNotFoundException fnfe) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, fnfe, "Cannot read file '%(filename)'", "filename", file.getPath());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
 
-            Vector<String> lines = new Vector<String>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                int len = line.length();
-                line = ((len > 0 && line.charAt(len - 1) == '\n') ? line.substring(0, len - 1) : line);
-                if (    (include_regexp == null || line.matches(include_regexp))
-                     && (exclude_regexp == null || line.matches(exclude_regexp))
-                   ) {
-                    lines.add(line);
-                }
+    static public Stream<String> streamLines(CallContext context, InputStream stream, Charset charset, RegexpFilter line_filter) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, charset), 65536);
+        Stream<String> lines = reader.lines().onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
             }
+        });
+        return line_filter == null || line_filter == RegexpFilter.ACCEPT_ALL ? lines : lines.filter(line_filter::accepts);
+    }
 
-            reader.close();
-
-            return lines;
+    /**
+       Lines of a large file accepted by the filter, read in parallel,
+       see ParallelLineScanner; if not ordered the consumer is called
+       concurrently.
+     */
+    static public void scanFile(CallContext context, File file, RegexpFilter line_filter, boolean ordered, Consumer<String> line_consumer) {
+        new ParallelLineScanner(context, file, StandardCharsets.UTF_8, line_filter).scan(context, ordered, line_consumer);
+    }
 
-        } catch (UnsupportedEncodingException uee) {
-            if (throw_exception) {
-                CustomaryContext.create((Context)context).throwPreConditionViolation(context, uee, "Cannot read from '%(info)'", "info", info);
-                throw (ExceptionPreConditionViolation) null; // compiler insists
-            } else {
-                return null;
-            }
-        } catch (IOException ioe) {
-            if (throw_exception) {
-                CustomaryContext.create((Context)context).throwPreConditionViolation(context, ioe, "Cannot read from '%(info)'", "info", info);
-                throw (ExceptionPreConditionViolation) null; // compiler insists
-            } else {
-                return null;
-            }
-        }
+    static public Vector<String> scanFile(CallContext context, File file, RegexpFilter line_filter) {
+        Vector<String> lines = new Vector<String>();
+        scanFile(context, file, line_filter, true, lines::add);
+        return lines;
     }
 
     static public String doReadReaderIntoString(CallContext context, BufferedReader reader, boolean throw_exception, String info) {
@@ -482,65 +568,28 @@ public class FileUtilities {
         copy(context, source, target, folder_include_regexp, folder_exclude_regexp, file_include_regexp, file_exclude_regexp, path_include_regexp, path_exclude_regexp, current_path, true);
     }
 
+    static public boolean copy(CallContext context, File source, File target, RegexpFilter folder_filter, RegexpFilter file_filter, RegexpFilter path_filter, boolean throw_exception) {
+        FileTreeCopy copy = new FileTreeCopy(context, source, target, folder_filter, file_filter, path_filter, "");
+        copy.setParallel(context, false);
+        return copy.copy(context, throw_exception);
+    }
+
+    /**
+       Incremental copy, only files not up to date according to the
+       comparison are written; copies in parallel, see FileTreeCopy.
+     */
+    static public boolean copy(CallContext context, File source, File target, FileTreeCopy.Comparison comparison, boolean delete_extraneous, File manifest_file, boolean throw_exception) {
+        FileTreeCopy copy = new FileTreeCopy(context, source, target, ".*", "^CVS|\\.svn|\\.git$", ".*", null, null, null);
+        copy.setComparison(context, comparison);
+        copy.setDeleteExtraneous(context, delete_extraneous);
+        copy.setManifestFile(context, manifest_file);
+        return copy.copy(context, throw_exception);
+    }
+
     static protected boolean copy(CallContext context, File source, File target, String folder_include_regexp, String folder_exclude_regexp, String file_include_regexp, String file_exclude_regexp, String path_include_regexp, String path_exclude_regexp, String current_path, boolean throw_exception) {
-        try {
-            if (source.isDirectory()) {
-                String[] entries = source.list();
-                if (entries != null) {
-                    for (String entry : entries) {
-                        File source_entry = new File(source, entry);
-                        File target_entry = new File(target, entry);
-                        String entry_path = current_path + "/" + entry;
-                        if (    (    path_include_regexp == null
-                                  || entry_path.matches(path_include_regexp)
-                                )
-                             && (    path_exclude_regexp == null
-                                  || (entry_path.matches(path_exclude_regexp) == false)
-                                )
-                            ) {
-                            if (    source_entry.isFile()
-                                 && (    file_include_regexp == null
-                                      || entry.matches(file_include_regexp)
-                                    )
-                                 && (    file_exclude_regexp == null
-                                      || (entry.matches(file_exclude_regexp) == false)
-                                    )
-                                ) {
-                                copy(context, source_entry, target_entry, folder_include_regexp, folder_exclude_regexp, file_include_regexp, file_exclude_regexp, path_include_regexp, path_exclude_regexp, entry_path);
-                            }
-                            if (source_entry.isDirectory()) {
-                                if (    (    folder_include_regexp == null
-                                          || entry.matches(folder_include_regexp)
-                                        )
-                                     && (    folder_exclude_regexp == null
-                                          || (entry.matches(folder_exclude_regexp) == false)
-                                        )
-                                    ) {
-                                    SystemCommandUtilities.ensureFolderExists(context, target_entry);
-                                }
-                                copy(context, source_entry, target_entry, folder_include_regexp, folder_exclude_regexp, file_include_regexp, file_exclude_regexp, path_include_regexp, path_exclude_regexp, entry_path);
-                            }
-                        }
-                    }
-                }
-            }
-            if (source.isFile()) {
-                SystemCommandUtilities.ensureParentFolderExists(context, target);
-                FileChannel sourceChannel      = new FileInputStream(source).getChannel();
-                FileChannel destinationChannel = new FileOutputStream(target).getChannel();
-                sourceChannel.transferTo(0, sourceChannel.size(), destinationChannel);
-                sourceChannel.close();
-                destinationChannel.close();
-            }
-        } catch (IOException ioe) {
-            if (throw_exception) {
-                CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Could not copy file");
-                throw (ExceptionEnvironmentError) null; // compiler insists
-            } else {
-                return false;
-            }
-        }
-        return true;
+        FileTreeCopy copy = new FileTreeCopy(context, source, target, folder_include_regexp, folder_exclude_regexp, file_include_regexp, file_exclude_regexp, path_include_regexp, path_exclude_regexp, current_path);
+        copy.setParallel(context, false);
+        return copy.copy(context, throw_exception);
     }
 
     static public void copy(CallContext context, File source, OutputStream os) {
@@ -617,28 +666,22 @@ public class FileUtilities {
     }
 
     static public void remove(CallContext context, File source, String folder_include_regexp, String folder_exclude_regexp, String file_include_regexp, String file_exclude_regexp) {
+        remove(context, source, RegexpFilter.create(context, folder_include_regexp, folder_exclude_regexp), RegexpFilter.create(context, file_include_regexp, file_exclude_regexp));
+    }
+
+    static public void remove(CallContext context, File source, RegexpFilter folder_filter, RegexpFilter file_filter) {
         if (source.isDirectory()) {
             String[] entries = source.list();
             if (entries != null) {
                 for (String entry : entries) {
                     File source_entry = new File(source, entry);
                     if (    source_entry.isDirectory()
-                            && (    folder_include_regexp == null
-                                    || entry.matches(folder_include_regexp)
-                                )
-                            && (    folder_exclude_regexp == null
-                                    || (entry.matches(folder_exclude_regexp) == false)
-                                )
+                            && (folder_filter == null || folder_filter.accepts(entry))
                         ) {
-                        remove(context, source_entry, folder_include_regexp, folder_exclude_regexp, file_include_regexp, file_exclude_regexp);
+                        remove(context, source_entry, folder_filter, file_filter);
                     } else
                     if (    // source_entry.isFile() <-- not true for symlinks, but there's no isSymLink(...)
-                               (    file_include_regexp == null
-                                    || entry.matches(file_include_regexp)
-                                )
-                            && (    file_exclude_regexp == null
-                                    || (entry.matches(file_exclude_regexp) == false)
-                                )
+                            (file_filter == null || file_filter.accepts(entry))
                         ) {
                         if ( ! source_entry.delete()) {
                             CustomaryContext.create((Context)context).throwEnvironmentError(context, "Could not remove file '%(file)'", "file", source_entry.getPath());
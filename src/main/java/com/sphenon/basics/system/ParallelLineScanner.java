@@ -0,0 +1,316 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+   Reads the lines of a file in parallel: the file is split into chunks
+   of about 'ChunkSize' bytes (default 8 MB) ending at a line end, each
+   chunk is read with a positional read, split into lines and filtered
+   in a pool of 'Parallelism' threads (default: number of processors)
+   shared by all scanners.
+
+   A chunk is at most four times 'ChunkSize'; if there is no line end
+   until then, the chunk ends within a line, and the partial line is
+   carried over and completed with the start of the next chunk.
+
+   Ordered, the consumer is called in the calling thread, with the lines
+   in file order; at most twice the parallelism chunks are in progress.
+   Unordered, the consumer is called concurrently from the pool threads,
+   in order within a chunk, and has to be thread safe. With a
+   parallelism of 1 everything runs in the calling thread.
+
+   Lines end with '\n', '\r' or "\r\n", as with BufferedReader.readLine;
+   chunks never split a "\r\n". As there is no byte level search for
+   other encodings, the charset has to be UTF-8 or a single byte
+   charset.
+ */
+public class ParallelLineScanner {
+
+    static final public Class _class = ParallelLineScanner.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class); };
+
+    static protected ForkJoinPool pool;
+
+    static synchronized protected ForkJoinPool getPool(CallContext context) {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, config.get(context, "Parallelism", Runtime.getRuntime().availableProcessors())));
+        }
+        return pool;
+    }
+
+    protected File         file;
+    protected Charset      charset;
+    protected RegexpFilter line_filter;
+    protected int          parallelism;
+    protected long         chunk_size;
+
+    public ParallelLineScanner(CallContext context, File file, Charset charset, RegexpFilter line_filter) {
+        if (charset.equals(StandardCharsets.UTF_8) == false && charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot scan lines of '%(file)' in charset '%(charset)', only UTF-8 and single byte charsets are supported", "file", file.getPath(), "charset", charset.name());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.file        = file;
+        this.charset     = charset;
+        this.line_filter = line_filter == null ? RegexpFilter.ACCEPT_ALL : line_filter;
+        this.parallelism = config.get(context, "Parallelism", Runtime.getRuntime().availableProcessors());
+        this.chunk_size  = config.get(context, "ChunkSize", 8 * 1024 * 1024);
+    }
+
+    /**
+       Number of chunks scanned at the same time, at most the size of the
+       shared pool; 1 scans in the calling thread.
+     */
+    public void setParallelism(CallContext context, int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setChunkSize(CallContext context, long chunk_size) {
+        this.chunk_size = chunk_size;
+    }
+
+    /*
+        The lines of a chunk; a chunk starting within a line begins with
+        the rest of that line, a chunk ending within a line ends with its
+        beginning, both are joined in the calling thread.
+    */
+    static protected class Chunk {
+        protected byte[]       head;
+        protected boolean      head_ended;
+        protected List<String> lines;
+        protected byte[]       tail;
+    }
+
+    // beginning of a line carried over from previous chunks
+    protected ByteArrayOutputStream carry;
+
+    public void scan(CallContext context, boolean ordered, Consumer<String> line_consumer) {
+        this.carry = null;
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ForkJoinPool pool = this.parallelism <= 1 ? null : getPool(context);
+            ArrayDeque<Future<Chunk>> in_progress = new ArrayDeque<Future<Chunk>>();
+            int window = 2 * Math.max(1, this.parallelism);
+            long    start    = 0;
+            boolean in_line  = false;
+            while (start < size) {
+                long end = this.findChunkEnd(context, channel, start, size);
+                final long    chunk_start   = start;
+                final boolean starts_in_line = in_line;
+                final boolean ends_in_line   = end < size && this.isLineEnd(context, channel, end - 1) == false;
+                Callable<Chunk> task = () -> this.scanChunk(context, channel, chunk_start, end, starts_in_line, ends_in_line, ordered ? null : line_consumer);
+                if (pool == null) {
+                    this.complete(context, task.call(), line_consumer);
+                } else {
+                    in_progress.addLast(pool.submit(task));
+                    while (in_progress.size() >= window) {
+                        this.complete(context, in_progress.removeFirst(), line_consumer);
+                    }
+                }
+                start   = end;
+                in_line = ends_in_line;
+            }
+            while (in_progress.isEmpty() == false) {
+                this.complete(context, in_progress.removeFirst(), line_consumer);
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, ioe, "Cannot read file '%(filename)'", "filename", this.file.getPath());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception e) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, e, "Scanning '%(filename)' failed", "filename", this.file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        } finally {
+            this.carry = null;
+        }
+    }
+
+    protected void complete(CallContext context, Future<Chunk> chunk, Consumer<String> line_consumer) throws IOException {
+        try {
+            this.complete(context, chunk.get(), line_consumer);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ie, "Scanning '%(filename)' interrupted", "filename", this.file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)     { throw (IOException) cause; }
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error)            { throw (Error) cause; }
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, cause, "Scanning '%(filename)' failed", "filename", this.file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    protected void complete(CallContext context, Chunk chunk, Consumer<String> line_consumer) {
+        if (chunk.head != null) {
+            this.carry.write(chunk.head, 0, chunk.head.length);
+            if (chunk.head_ended) {
+                this.acceptCarry(context, line_consumer);
+            }
+        }
+        if (chunk.lines != null) {
+            for (String line : chunk.lines) {
+                line_consumer.accept(line);
+            }
+        }
+        if (chunk.tail != null) {
+            this.carry = new ByteArrayOutputStream();
+            this.carry.write(chunk.tail, 0, chunk.tail.length);
+        }
+    }
+
+    protected void acceptCarry(CallContext context, Consumer<String> line_consumer) {
+        if (this.carry.size() > Integer.MAX_VALUE - 8) {
+            CustomaryContext.create((Context)context).throwLimitation(context, "Line in '%(filename)' of %(length) bytes too long for scanning", "filename", this.file.getPath(), "length", t.s(this.carry.size()));
+            throw (ExceptionLimitation) null; // compiler insists
+        }
+        String line = new String(this.carry.toByteArray(), this.charset);
+        this.carry = null;
+        if (this.line_filter.accepts(line)) {
+            line_consumer.accept(line);
+        }
+    }
+
+    protected boolean isLineEnd(CallContext context, FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        if (channel.read(buffer, position) <= 0) { return false; }
+        byte b = buffer.get(0);
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+       End of the chunk starting at start, i.e. the position after the
+       first line end at or after start + chunk_size - 1, a "\r\n" counts
+       as one; or the size; or start + 4 * chunk_size if there is no line
+       end before.
+     */
+    protected long findChunkEnd(CallContext context, FileChannel channel, long start, long size) throws IOException {
+        long chunk_size = Math.max(1, Math.min(this.chunk_size, (Integer.MAX_VALUE - 8) / 4));
+        long position   = start + chunk_size - 1;
+        long limit      = Math.min(size, start + 4 * chunk_size);
+        if (position >= size) { return size; }
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < limit) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) { return size; }
+            for (int i=0; i<read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') { return position + i + 1; }
+                if (b == '\r') {
+                    long next = position + i + 1;
+                    if (next < size) {
+                        ByteBuffer peek = ByteBuffer.allocate(1);
+                        if (channel.read(peek, next) == 1 && peek.get(0) == '\n') { return next + 1; }
+                    }
+                    return next;
+                }
+            }
+            position += read;
+        }
+        return limit;
+    }
+
+    /**
+       Reads and splits the chunk; accepted lines are returned in the
+       chunk, or passed to the consumer directly.
+     */
+    protected Chunk scanChunk(CallContext context, FileChannel channel, long start, long end, boolean starts_in_line, boolean ends_in_line, Consumer<String> line_consumer) throws IOException {
+        // read instead of mapped, a mapping would only be released by
+        // the garbage collector
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) == -1) {
+                CustomaryContext.create((Context)context).throwEnvironmentError(context, "File '%(filename)' truncated while scanning", "filename", this.file.getPath());
+                throw (ExceptionEnvironmentError) null; // compiler insists
+            }
+        }
+
+        Chunk chunk = new Chunk();
+        chunk.lines = line_consumer == null ? new ArrayList<String>() : null;
+        int line_start = 0;
+        int length = bytes.length;
+        for (int i=0; i<=length; i++) {
+            if (i == length) {
+                if (line_start == length) { break; }
+                if (starts_in_line && line_start == 0) {
+                    // no line end at all, the chunk is part of a longer line
+                    chunk.head       = bytes;
+                    chunk.head_ended = ends_in_line == false;
+                    break;
+                }
+                if (ends_in_line) {
+                    chunk.tail = line_start == 0 ? bytes : Arrays.copyOfRange(bytes, line_start, length);
+                    break;
+                }
+            } else if (bytes[i] != '\n' && bytes[i] != '\r') {
+                continue;
+            }
+            if (starts_in_line && line_start == 0) {
+                chunk.head       = Arrays.copyOfRange(bytes, 0, i);
+                chunk.head_ended = true;
+            } else {
+                String line = new String(bytes, line_start, i - line_start, this.charset);
+                if (this.line_filter.accepts(line)) {
+                    if (chunk.lines != null) {
+                        chunk.lines.add(line);
+                    } else {
+                        line_consumer.accept(line);
+                    }
+                }
+            }
+            if (i < length - 1 && bytes[i] == '\r' && bytes[i + 1] == '\n') { i++; }
+            line_start = i + 1;
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,158 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+   Collects the raw bytes written by a process, without decoding them;
+   text is only decoded on request, with an explicit charset.
+
+   Bytes are stored in direct buffers of 'BufferSize' bytes, which are
+   returned to a shared pool of at most 'BufferPoolSize' buffers on
+   release.
+ */
+public class ProcessByteCollector {
+
+    static final public Class _class = ProcessByteCollector.class;
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class); };
+
+    static protected ConcurrentLinkedQueue<ByteBuffer> buffer_pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    static protected AtomicInteger                     buffer_pool_size = new AtomicInteger();
+    static final protected int                         buffer_size;
+    static final protected int                         buffer_pool_limit;
+    static {
+        CallContext context = RootContext.getInitialisationContext();
+        buffer_pool_limit = config.get(context, "BufferPoolSize", 64);
+        buffer_size       = config.get(context, "BufferSize", 65536);
+    };
+
+    static protected ByteBuffer allocateBuffer(CallContext context) {
+        ByteBuffer buffer = buffer_pool.poll();
+        if (buffer != null) {
+            buffer_pool_size.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(buffer_size);
+    }
+
+    static protected void recycleBuffer(CallContext context, ByteBuffer buffer) {
+        if (buffer.capacity() == buffer_size && buffer_pool_size.incrementAndGet() <= buffer_pool_limit) {
+            buffer_pool.add(buffer);
+        } else {
+            buffer_pool_size.decrementAndGet();
+        }
+    }
+
+    protected ArrayList<ByteBuffer> buffers;
+    protected long                  length;
+
+    public ProcessByteCollector(CallContext context) {
+        this.buffers = new ArrayList<ByteBuffer>();
+    }
+
+    public synchronized long getLength(CallContext context) {
+        return this.length;
+    }
+
+    public synchronized void append(CallContext context, byte[] bytes, int offset, int length) {
+        this.length += length;
+        while (length > 0) {
+            ByteBuffer current = this.buffers.isEmpty() ? null : this.buffers.get(this.buffers.size() - 1);
+            if (current == null || current.hasRemaining() == false) {
+                current = allocateBuffer(context);
+                this.buffers.add(current);
+            }
+            int n = Math.min(length, current.remaining());
+            current.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    public synchronized byte[] getBytes(CallContext context) {
+        if (this.length > Integer.MAX_VALUE - 8) {
+            CustomaryContext.create((Context)context).throwLimitation(context, "Collected process output of %(length) bytes too large for an array", "length", t.s(this.length));
+            throw (ExceptionLimitation) null; // compiler insists
+        }
+        byte[] bytes = new byte[(int) this.length];
+        int offset = 0;
+        for (ByteBuffer buffer : this.buffers) {
+            ByteBuffer view = buffer.duplicate();
+            view.flip();
+            int n = view.remaining();
+            view.get(bytes, offset, n);
+            offset += n;
+        }
+        return bytes;
+    }
+
+    public synchronized String getString(CallContext context, Charset charset) {
+        return new String(this.getBytes(context), charset);
+    }
+
+    public synchronized void writeTo(CallContext context, OutputStream output_stream) throws IOException {
+        byte[] transfer = new byte[8192];
+        for (ByteBuffer buffer : this.buffers) {
+            ByteBuffer view = buffer.duplicate();
+            view.flip();
+            while (view.hasRemaining()) {
+                int n = Math.min(transfer.length, view.remaining());
+                view.get(transfer, 0, n);
+                output_stream.write(transfer, 0, n);
+            }
+        }
+    }
+
+    /**
+       Returns the collected bytes as text and releases them, atomically
+       with respect to append, so that no bytes appended meanwhile are
+       lost and no buffer is recycled while in use.
+     */
+    public synchronized String takeString(CallContext context, Charset charset) {
+        String result = this.getString(context, charset);
+        this.release(context);
+        return result;
+    }
+
+    /**
+       Discards the collected bytes and returns the buffers to the pool.
+     */
+    public synchronized void release(CallContext context) {
+        for (ByteBuffer buffer : this.buffers) {
+            recycleBuffer(context, buffer);
+        }
+        this.buffers.clear();
+        this.length = 0;
+    }
+}
@@ -0,0 +1,269 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+
+/**
+   Collects text written by a process, in chunks as delivered by the
+   listener.
+
+   Modes:
+     Unbounded  everything is kept in memory
+     HeadTail   the first and the last limit/2 characters are kept, the
+                middle is dropped
+     Spill      up to limit characters are kept in memory, beyond that
+                all text is written to a temporary file
+
+   Collected chunks can be consumed incrementally via takeChunks,
+   without copying the complete content; consumed text is no longer
+   part of getContent. In HeadTail mode the head is kept once filled,
+   only its not yet consumed part is returned; in Spill mode, once
+   spilled, text is read from the spill file from where the last call
+   ended.
+ */
+public class ProcessOutputCollector {
+
+    public enum Mode { Unbounded, HeadTail, Spill };
+
+    protected Mode               mode;
+    protected long               limit;
+
+    protected StringBuilder      head;
+    protected int                head_taken;
+    protected ArrayDeque<String> chunks;
+    protected long               chunks_length;
+    protected long               total_length;
+    protected long               dropped_length;
+    protected long               dropped_taken;
+
+    protected File               spill_file;
+    protected Writer             spill_writer;
+    // bytes of the spill file already returned by takeChunks
+    protected long               spill_taken;
+
+    public ProcessOutputCollector(CallContext context, Mode mode, long limit) {
+        this.mode   = mode;
+        this.limit  = limit;
+        this.chunks = new ArrayDeque<String>();
+    }
+
+    public Mode getMode(CallContext context) {
+        return this.mode;
+    }
+
+    public synchronized long getTotalLength(CallContext context) {
+        return this.total_length;
+    }
+
+    public synchronized long getDroppedLength(CallContext context) {
+        return this.dropped_length;
+    }
+
+    /**
+       The file containing the complete text in Spill mode once the
+       limit was exceeded, otherwise null.
+     */
+    public synchronized File getSpillFile(CallContext context) {
+        return this.spill_file;
+    }
+
+    public synchronized void append(CallContext context, char[] buffer, int offset, int length) {
+        this.total_length += length;
+        switch (this.mode) {
+            case Unbounded:
+                this.addChunk(new String(buffer, offset, length));
+                break;
+            case HeadTail:
+                long head_limit = this.limit / 2;
+                int head_length = this.head == null ? 0 : this.head.length();
+                if (head_length < head_limit) {
+                    int n = (int) Math.min(length, head_limit - head_length);
+                    if (this.head == null) { this.head = new StringBuilder(); }
+                    this.head.append(buffer, offset, n);
+                    offset += n;
+                    length -= n;
+                }
+                if (length > 0) {
+                    this.addChunk(new String(buffer, offset, length));
+                    this.trimTail(this.limit - head_limit);
+                }
+                break;
+            case Spill:
+                if (this.spill_writer == null && this.chunks_length + length <= this.limit) {
+                    this.addChunk(new String(buffer, offset, length));
+                } else {
+                    this.spill(context, buffer, offset, length);
+                }
+                break;
+        }
+    }
+
+    protected void addChunk(String chunk) {
+        this.chunks.addLast(chunk);
+        this.chunks_length += chunk.length();
+    }
+
+    protected void trimTail(long tail_limit) {
+        while (this.chunks_length > tail_limit) {
+            String first = this.chunks.removeFirst();
+            long excess = this.chunks_length - tail_limit;
+            if (first.length() > excess) {
+                this.chunks.addFirst(first.substring((int) excess));
+                this.chunks_length -= excess;
+                this.dropped_length += excess;
+            } else {
+                this.chunks_length -= first.length();
+                this.dropped_length += first.length();
+            }
+        }
+    }
+
+    protected void spill(CallContext context, char[] buffer, int offset, int length) {
+        try {
+            if (this.spill_writer == null) {
+                this.spill_file = File.createTempFile("process-output", ".txt");
+                this.spill_file.deleteOnExit();
+                this.spill_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.spill_file), StandardCharsets.UTF_8), 65536);
+                for (String chunk : this.chunks) {
+                    this.spill_writer.write(chunk);
+                }
+                this.chunks.clear();
+                this.chunks_length = 0;
+            }
+            this.spill_writer.write(buffer, offset, length);
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Could not spill process output to '%(file)'", "file", this.spill_file);
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    /**
+       Returns and removes the text collected since the last call; in
+       HeadTail mode text dropped meanwhile is marked as omitted.
+     */
+    public synchronized List<String> takeChunks(CallContext context) {
+        List<String> result = new ArrayList<String>(this.chunks.size() + 2);
+        if (this.head != null && this.head.length() > this.head_taken) {
+            result.add(this.head.substring(this.head_taken));
+            this.head_taken = this.head.length();
+        }
+        if (this.dropped_length > this.dropped_taken) {
+            result.add(this.getOmission(context, this.dropped_length - this.dropped_taken));
+            this.dropped_taken = this.dropped_length;
+        }
+        if (this.spill_writer != null) {
+            StringBuilder spilled = new StringBuilder();
+            this.spill_taken = this.readSpillFile(context, this.spill_taken, spilled);
+            if (spilled.length() > 0) {
+                result.add(spilled.toString());
+            }
+        }
+        result.addAll(this.chunks);
+        this.chunks.clear();
+        this.chunks_length = 0;
+        return result;
+    }
+
+    protected String getOmission(CallContext context, long length) {
+        return "\n[... " + length + " characters omitted ...]\n";
+    }
+
+    /*
+        Appends the spill file from the given byte offset on and returns
+        the offset of its end.
+    */
+    protected long readSpillFile(CallContext context, long offset, StringBuilder content) {
+        try {
+            this.spill_writer.flush();
+            try (FileInputStream fis = new FileInputStream(this.spill_file)) {
+                long end = fis.getChannel().size();
+                fis.getChannel().position(offset);
+                // written as UTF-8 above, not in the platform charset
+                Reader reader = new InputStreamReader(fis, StandardCharsets.UTF_8);
+                char[] buffer = new char[65536];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    content.append(buffer, 0, count);
+                }
+                return end;
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Could not read spilled process output from '%(file)'", "file", this.spill_file);
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    public synchronized String getContent(CallContext context, boolean clear) {
+        int head_length = this.head == null ? 0 : this.head.length() - this.head_taken;
+        StringBuilder content = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, head_length + this.chunks_length + 64));
+        if (head_length > 0) {
+            content.append(this.head, this.head_taken, this.head.length());
+        }
+        if (this.dropped_length > this.dropped_taken) {
+            content.append(this.getOmission(context, this.dropped_length - this.dropped_taken));
+        }
+        if (this.spill_writer != null) {
+            this.readSpillFile(context, this.spill_taken, content);
+        }
+        for (String chunk : this.chunks) {
+            content.append(chunk);
+        }
+        if (clear) {
+            this.clear(context);
+        }
+        return content.toString();
+    }
+
+    public synchronized void clear(CallContext context) {
+        if (this.head != null) { this.head.setLength(0); }
+        this.head_taken = 0;
+        this.chunks.clear();
+        this.chunks_length  = 0;
+        this.dropped_length = 0;
+        this.dropped_taken  = 0;
+        this.release(context);
+    }
+
+    public synchronized void release(CallContext context) {
+        if (this.spill_writer != null) {
+            try {
+                this.spill_writer.close();
+            } catch (IOException ioe) {
+                NotificationContext.sendError(context, "Could not close spilled process output '%(file)': %(reason)", "file", this.spill_file, "reason", ioe);
+            }
+            this.spill_writer = null;
+            this.spill_file.delete();
+            this.spill_file = null;
+            this.spill_taken = 0;
+        }
+    }
+
+    public String toString() {
+        return this.getContent(RootContext.getRootContext(), false);
+    }
+}
@@ -25,12 +25,169 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Modifier;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ReflectionUtilities {
 
     public ReflectionUtilities (CallContext context) {
     }
 
+    /*
+        getDeclaredMethods/getDeclaredConstructors copy all members on
+        each call, so matching uses per class copies; these are shared,
+        hence only used for matching, the match is returned as a fresh
+        copy via getDeclaredMethod/getDeclaredConstructor (so that e.g.
+        setAccessible of a caller does not affect others).
+    */
+    static protected ClassValue<Method[]> declared_methods = new ClassValue<Method[]>() {
+        protected Method[] computeValue(Class<?> a_class) {
+            return a_class.getDeclaredMethods();
+        }
+    };
+
+    static protected ClassValue<Constructor[]> declared_constructors = new ClassValue<Constructor[]>() {
+        protected Constructor[] computeValue(Class<?> a_class) {
+            return a_class.getDeclaredConstructors();
+        }
+    };
+
+    /*
+        MethodHandles for reflective members, cached per member and
+        adapted to generic signatures, to be called via invokeExact:
+
+          getInvoker   (Object instance, Object[] arguments)Object
+                       (instance is ignored for static methods)
+          getCreator   (Object[] arguments)Object
+          getGetter    (Object instance)Object
+          getSetter    (Object instance, Object value)void
+
+        Exceptions of the target are thrown as they are, not wrapped.
+        Held in a static final field (or other constant) they are inlined
+        by the JIT and then faster than Method.invoke etc.; fetched per
+        call they are not, so invoke, newInstance, getValue and setValue
+        keep using reflection.
+    */
+    static protected class MemberHandles {
+        protected ConcurrentHashMap<Member,MethodHandle> handles     = new ConcurrentHashMap<Member,MethodHandle>();
+        // getter and setter share the Field as key, hence a separate map
+        protected ConcurrentHashMap<Field,MethodHandle>  setters     = new ConcurrentHashMap<Field,MethodHandle>();
+        protected ConcurrentHashMap<Field,VarHandle>     var_handles = new ConcurrentHashMap<Field,VarHandle>();
+    }
+
+    // per declaring class, so that the handles do not keep classes and
+    // their loaders reachable
+    static protected ClassValue<MemberHandles> member_handles = new ClassValue<MemberHandles>() {
+        protected MemberHandles computeValue(Class<?> a_class) {
+            return new MemberHandles();
+        }
+    };
+
+    static protected MethodType invoker_type = MethodType.methodType(Object.class, Object.class, Object[].class);
+    static protected MethodType creator_type = MethodType.methodType(Object.class, Object[].class);
+    static protected MethodType getter_type  = MethodType.methodType(Object.class, Object.class);
+    static protected MethodType setter_type  = MethodType.methodType(void.class, Object.class, Object.class);
+
+    static protected void throwInaccessible(CallContext context, IllegalAccessException iae, Member member) {
+        CustomaryContext.create((Context)context).throwConfigurationError(context, iae, "Could not access member '%(member)'", "member", member.getName());
+        throw (ExceptionConfigurationError) null; // compiler insists
+    }
+
+    static public MethodHandle getInvoker(CallContext context, Method method) {
+        ConcurrentHashMap<Member,MethodHandle> handles = member_handles.get(method.getDeclaringClass()).handles;
+        MethodHandle handle = handles.get(method);
+        if (handle == null) {
+            try {
+                handle = MethodHandles.lookup().unreflect(method);
+            } catch (IllegalAccessException iae) {
+                throwInaccessible(context, iae, method);
+            }
+            int count = method.getParameterCount();
+            if (Modifier.isStatic(method.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle.asSpreader(Object[].class, count), 0, Object.class);
+            } else {
+                handle = handle.asSpreader(1, Object[].class, count);
+            }
+            handle = handle.asType(invoker_type);
+            handles.putIfAbsent(method, handle);
+        }
+        return handle;
+    }
+
+    static public MethodHandle getCreator(CallContext context, Constructor constructor) {
+        ConcurrentHashMap<Member,MethodHandle> handles = member_handles.get(constructor.getDeclaringClass()).handles;
+        MethodHandle handle = handles.get(constructor);
+        if (handle == null) {
+            try {
+                handle = MethodHandles.lookup().unreflectConstructor(constructor);
+            } catch (IllegalAccessException iae) {
+                throwInaccessible(context, iae, constructor);
+            }
+            handle = handle.asSpreader(Object[].class, constructor.getParameterCount()).asType(creator_type);
+            handles.putIfAbsent(constructor, handle);
+        }
+        return handle;
+    }
+
+    static public MethodHandle getGetter(CallContext context, Field field) {
+        ConcurrentHashMap<Member,MethodHandle> handles = member_handles.get(field.getDeclaringClass()).handles;
+        MethodHandle handle = handles.get(field);
+        if (handle == null) {
+            try {
+                handle = MethodHandles.lookup().unreflectGetter(field);
+            } catch (IllegalAccessException iae) {
+                throwInaccessible(context, iae, field);
+            }
+            if (Modifier.isStatic(field.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            handle = handle.asType(getter_type);
+            handles.putIfAbsent(field, handle);
+        }
+        return handle;
+    }
+
+    static public MethodHandle getSetter(CallContext context, Field field) {
+        ConcurrentHashMap<Field,MethodHandle> setters = member_handles.get(field.getDeclaringClass()).setters;
+        MethodHandle handle = setters.get(field);
+        if (handle == null) {
+            try {
+                handle = MethodHandles.lookup().unreflectSetter(field);
+            } catch (IllegalAccessException iae) {
+                throwInaccessible(context, iae, field);
+            }
+            if (Modifier.isStatic(field.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            handle = handle.asType(setter_type);
+            setters.putIfAbsent(field, handle);
+        }
+        return handle;
+    }
+
+    /**
+       VarHandle of the field, e.g. for atomic or ordered access.
+     */
+    static public VarHandle getVarHandle(CallContext context, Field field) {
+        ConcurrentHashMap<Field,VarHandle> var_handles = member_handles.get(field.getDeclaringClass()).var_handles;
+        VarHandle handle = var_handles.get(field);
+        if (handle == null) {
+            try {
+                handle = MethodHandles.lookup().unreflectVarHandle(field);
+            } catch (IllegalAccessException iae) {
+                throwInaccessible(context, iae, field);
+            }
+            var_handles.putIfAbsent(field, handle);
+        }
+        return handle;
+    }
+
     static public Field getField(CallContext context, Class a_class, String name) {
         try {
             return a_class.getField(name);
@@ -193,7 +350,7 @@ public class ReflectionUtilities {
     }
 
     static public Method tryGetMatchingMethod(CallContext context, Class a_class, String name, Class... formalarguments) {
-        for (Method m : a_class.getDeclaredMethods()) {
+        for (Method m : declared_methods.get(a_class)) {
             if (m.getName().equals(name) == false) {
                 continue;
             }
@@ -208,7 +365,12 @@ public class ReflectionUtilities {
                     continue;
                 }
             }
-            return m;
+            try {
+                return a_class.getDeclaredMethod(name, pts);
+            } catch (NoSuchMethodException nsme) {
+                CustomaryContext.create((Context)context).throwAssertionProvedFalse(context, nsme, "Matched method '%(method)' not found again", "method", name);
+                throw (ExceptionAssertionProvedFalse) null; // compiler insists
+            }
         }
         if (a_class.getSuperclass() != null) {
             return tryGetMatchingMethod(context, a_class.getSuperclass(), name, formalarguments);
@@ -368,7 +530,7 @@ public class ReflectionUtilities {
     }
 
     static public ConstructorMatchResult tryGetMatchingConstructor(CallContext context, boolean optional_context, Class a_class, Class... formalarguments) {
-        for (Constructor c : a_class.getDeclaredConstructors()) {
+        for (Constructor c : declared_constructors.get(a_class)) {
             Class[] pts = c.getParameterTypes();
             int size1 = (formalarguments == null ? 0 : formalarguments.length);
             int size2 = (pts == null ? 0 : pts.length);
@@ -381,7 +543,12 @@ public class ReflectionUtilities {
                     continue;
                 }
             }
-            return new ConstructorMatchResult(c, add_context == 1 ? true : false);
+            try {
+                return new ConstructorMatchResult(a_class.getDeclaredConstructor(pts), add_context == 1 ? true : false);
+            } catch (NoSuchMethodException nsme) {
+                CustomaryContext.create((Context)context).throwAssertionProvedFalse(context, nsme, "Matched constructor of '%(class)' not found again", "class", a_class.getName());
+                throw (ExceptionAssertionProvedFalse) null; // compiler insists
+            }
         }
         if (a_class.getSuperclass() != null) {
             return tryGetMatchingConstructor(context, optional_context, a_class.getSuperclass(), formalarguments);
@@ -0,0 +1,244 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+   An include and an exclude regular expression, both optional, compiled
+   once; a string is accepted if it matches the include expression
+   completely and does not match the exclude expression completely, as
+   with String.matches.
+
+   Expressions consisting only of alternatives of the forms
+
+     literal    ^literal$    literal.*    .*literal    .*literal.*    .*
+
+   (literals may contain escaped punctuation like '\.', alternatives may
+   be wrapped in '(?:...)') are evaluated with String.equals, startsWith,
+   endsWith and contains instead of a regular expression.
+ */
+public class RegexpFilter {
+
+    static final public RegexpFilter ACCEPT_ALL = new RegexpFilter(null, null, null);
+
+    protected String     include_regexp;
+    protected String     exclude_regexp;
+    protected Expression include;
+    protected Expression exclude;
+
+    protected RegexpFilter(CallContext context, String include_regexp, String exclude_regexp) {
+        this.include_regexp = include_regexp;
+        this.exclude_regexp = exclude_regexp;
+        this.include        = Expression.create(context, include_regexp);
+        this.exclude        = Expression.create(context, exclude_regexp);
+    }
+
+    /**
+       @param include_regexp may be null, accepts everything
+       @param exclude_regexp may be null, excludes nothing
+     */
+    static public RegexpFilter create(CallContext context, String include_regexp, String exclude_regexp) {
+        if (include_regexp == null && exclude_regexp == null) {
+            return ACCEPT_ALL;
+        }
+        return new RegexpFilter(context, include_regexp, exclude_regexp);
+    }
+
+    public String getIncludeRegexp(CallContext context) {
+        return this.include_regexp;
+    }
+
+    public String getExcludeRegexp(CallContext context) {
+        return this.exclude_regexp;
+    }
+
+    public boolean accepts(String string) {
+        return    (this.include == null || this.include.matches(string))
+               && (this.exclude == null || this.exclude.matches(string) == false);
+    }
+
+    public String toString() {
+        return (this.include_regexp == null ? "" : ("~ " + this.include_regexp)) + (this.exclude_regexp == null ? "" : (" !~ " + this.exclude_regexp));
+    }
+
+    static protected class Expression {
+
+        static final protected int ANY      = 0;
+        static final protected int EQUALS   = 1;
+        static final protected int PREFIX   = 2;
+        static final protected int SUFFIX   = 3;
+        static final protected int CONTAINS = 4;
+
+        // either kinds and literals, one per alternative, or pattern
+        protected int[]    kinds;
+        protected String[] literals;
+        protected boolean  uses_wildcard;
+        protected Pattern  pattern;
+        protected String   regexp;
+
+        static protected Expression create(CallContext context, String regexp) {
+            if (regexp == null) { return null; }
+            Expression expression = new Expression();
+            expression.regexp = regexp;
+            List<String> alternatives = new ArrayList<String>();
+            if (splitAlternatives(regexp, alternatives)) {
+                int n = alternatives.size();
+                expression.kinds    = new int[n];
+                expression.literals = new String[n];
+                for (int a=0; a<n; a++) {
+                    if (expression.parseAlternative(alternatives.get(a), a) == false) {
+                        expression.kinds = null;
+                        expression.literals = null;
+                        break;
+                    }
+                }
+            }
+            if (expression.kinds == null || expression.uses_wildcard) {
+                try {
+                    expression.pattern = Pattern.compile(regexp);
+                } catch (PatternSyntaxException pse) {
+                    CustomaryContext.create((Context)context).throwPreConditionViolation(context, pse, "Invalid regular expression '%(regexp)'", "regexp", regexp);
+                    throw (ExceptionPreConditionViolation) null; // compiler insists
+                }
+            }
+            return expression;
+        }
+
+        /**
+           Splits at top level '|', unwrapping alternatives of the form
+           '(?:...)'; returns false if parentheses or brackets are not
+           balanced, the expression is then left to Pattern.
+         */
+        static protected boolean splitAlternatives(String regexp, List<String> alternatives) {
+            int depth = 0;
+            int start = 0;
+            int length = regexp.length();
+            for (int i=0; i<=length; i++) {
+                char c = i < length ? regexp.charAt(i) : '|';
+                if (c == '\\') { i++; continue; }
+                if (c == '(' || c == '[') { depth++; continue; }
+                if (c == ')' || c == ']') { if (--depth < 0) { return false; } continue; }
+                if (c == '|' && depth == 0) {
+                    String alternative = regexp.substring(start, Math.min(i, length));
+                    if (alternative.startsWith("(?:") && alternative.endsWith(")") && isEnclosed(alternative)) {
+                        if (splitAlternatives(alternative.substring(3, alternative.length() - 1), alternatives) == false) {
+                            return false;
+                        }
+                    } else {
+                        alternatives.add(alternative);
+                    }
+                    start = i + 1;
+                }
+            }
+            return depth == 0;
+        }
+
+        // whether the opening parenthesis at 0 is closed at the very end
+        static protected boolean isEnclosed(String group) {
+            int depth = 0;
+            for (int i=0; i<group.length(); i++) {
+                char c = group.charAt(i);
+                if (c == '\\') { i++; continue; }
+                if (c == '(' || c == '[') { depth++; }
+                if (c == ')' || c == ']') { depth--; if (depth == 0) { return i == group.length() - 1; } }
+            }
+            return false;
+        }
+
+        protected boolean parseAlternative(String alternative, int index) {
+            int begin = 0;
+            int end   = alternative.length();
+            if (begin < end && alternative.charAt(begin) == '^') { begin++; }
+            if (end > begin && alternative.charAt(end - 1) == '$' && isEscaped(alternative, end - 1) == false) { end--; }
+            boolean any_start = false;
+            boolean any_end   = false;
+            if (alternative.startsWith(".*", begin)) {
+                any_start = true;
+                begin += 2;
+            }
+            if (end - 2 >= begin && alternative.startsWith(".*", end - 2) && isEscaped(alternative, end - 2) == false) {
+                any_end = true;
+                end -= 2;
+            }
+            StringBuilder literal = new StringBuilder(end - begin);
+            for (int i=begin; i<end; i++) {
+                char c = alternative.charAt(i);
+                if (c == '\\') {
+                    if (++i == end) { return false; }
+                    c = alternative.charAt(i);
+                    if (Character.isLetterOrDigit(c)) { return false; } // \d, \w, \Q etc.
+                } else if (".[]{}()*+?^$|".indexOf(c) != -1) {
+                    return false;
+                }
+                literal.append(c);
+            }
+            this.literals[index] = literal.toString();
+            this.kinds[index] =   (any_start || any_end) && literal.length() == 0 ? ANY
+                                : any_start && any_end ? CONTAINS
+                                : any_start            ? SUFFIX
+                                : any_end              ? PREFIX
+                                :                        EQUALS;
+            if (any_start || any_end) { this.uses_wildcard = true; }
+            return true;
+        }
+
+        static protected boolean isEscaped(String string, int index) {
+            int backslashes = 0;
+            while (index - backslashes - 1 >= 0 && string.charAt(index - backslashes - 1) == '\\') {
+                backslashes++;
+            }
+            return (backslashes % 2) == 1;
+        }
+
+        // '.' does not match line terminators, such strings are left to Pattern
+        static protected boolean containsLineTerminator(String string) {
+            for (int i=0; i<string.length(); i++) {
+                char c = string.charAt(i);
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected boolean matches(String string) {
+            if (this.kinds == null || (this.uses_wildcard && containsLineTerminator(string))) {
+                return this.pattern.matcher(string).matches();
+            }
+            for (int a=0; a<this.kinds.length; a++) {
+                String literal = this.literals[a];
+                switch (this.kinds[a]) {
+                    case ANY      : return true;
+                    case EQUALS   : if (string.equals(literal))     { return true; } break;
+                    case PREFIX   : if (string.startsWith(literal)) { return true; } break;
+                    case SUFFIX   : if (string.endsWith(literal))   { return true; } break;
+                    case CONTAINS : if (string.contains(literal))   { return true; } break;
+                }
+            }
+            return false;
+        }
+    }
+}
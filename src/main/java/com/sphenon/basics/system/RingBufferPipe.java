@@ -0,0 +1,223 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import java.io.*;
+
+import java.util.concurrent.locks.*;
+
+/**
+   Bounded byte pipe between one writing and one reading thread, a
+   replacement for PipedInputStream/PipedOutputStream: bulk copies,
+   configurable capacity, and blocked threads are woken up immediately
+   instead of polling.
+
+   Closing the output stream lets the reader drain the remaining bytes
+   and then see end of stream; closing the input stream makes pending
+   and further writes fail.
+
+   The input stream is a PipedInputStream, so that it can be returned
+   where one was returned before; it must not be connected to a
+   PipedOutputStream.
+ */
+public class RingBufferPipe {
+
+    protected byte[]    buffer;
+    protected long      written;
+    protected long      read;
+    protected boolean   writer_closed;
+    protected boolean   reader_closed;
+
+    protected ReentrantLock lock;
+    protected Condition     not_empty;
+    protected Condition     not_full;
+
+    protected PipedInputStream input_stream;
+    protected OutputStream     output_stream;
+
+    public RingBufferPipe(int capacity) {
+        this.buffer    = new byte[capacity];
+        this.lock      = new ReentrantLock();
+        this.not_empty = this.lock.newCondition();
+        this.not_full  = this.lock.newCondition();
+
+        // the inherited buffer is not used
+        this.input_stream = new PipedInputStream(1) {
+                public int read() throws IOException {
+                    return RingBufferPipe.this.read();
+                }
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return RingBufferPipe.this.read(b, off, len);
+                }
+                public int available() throws IOException {
+                    return RingBufferPipe.this.available();
+                }
+                public void close() throws IOException {
+                    RingBufferPipe.this.closeReader();
+                }
+                public void connect(PipedOutputStream source) throws IOException {
+                    throw new IOException("Ring buffer pipe cannot be connected");
+                }
+            };
+
+        this.output_stream = new OutputStream() {
+                public void write(int b) throws IOException {
+                    RingBufferPipe.this.write(b);
+                }
+                public void write(byte[] b, int off, int len) throws IOException {
+                    RingBufferPipe.this.write(b, off, len);
+                }
+                public void close() throws IOException {
+                    RingBufferPipe.this.closeWriter();
+                }
+            };
+    }
+
+    public PipedInputStream getInputStream() {
+        return this.input_stream;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.output_stream;
+    }
+
+    public int getCapacity() {
+        return this.buffer.length;
+    }
+
+    protected void write(byte[] b, int off, int len) throws IOException {
+        this.lock.lock();
+        try {
+            if (this.writer_closed) { throw new IOException("Pipe closed"); }
+            int capacity = this.buffer.length;
+            while (len > 0) {
+                while (this.written - this.read == capacity && this.reader_closed == false) {
+                    this.not_full.await();
+                }
+                if (this.reader_closed) { throw new IOException("Pipe closed by reader"); }
+                int position = (int) (this.written % capacity);
+                int free     = capacity - (int) (this.written - this.read);
+                int n        = Math.min(len, Math.min(free, capacity - position));
+                System.arraycopy(b, off, this.buffer, position, n);
+                this.written += n;
+                off += n;
+                len -= n;
+                this.not_empty.signal();
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while writing to pipe");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected void write(int b) throws IOException {
+        this.lock.lock();
+        try {
+            if (this.writer_closed) { throw new IOException("Pipe closed"); }
+            int capacity = this.buffer.length;
+            while (this.written - this.read == capacity && this.reader_closed == false) {
+                this.not_full.await();
+            }
+            if (this.reader_closed) { throw new IOException("Pipe closed by reader"); }
+            this.buffer[(int) (this.written % capacity)] = (byte) b;
+            this.written++;
+            this.not_empty.signal();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while writing to pipe");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected int read() throws IOException {
+        this.lock.lock();
+        try {
+            while (this.written == this.read) {
+                if (this.reader_closed) { throw new IOException("Pipe closed"); }
+                if (this.writer_closed) { return -1; }
+                this.not_empty.await();
+            }
+            if (this.reader_closed) { throw new IOException("Pipe closed"); }
+            int b = this.buffer[(int) (this.read % this.buffer.length)] & 0xFF;
+            this.read++;
+            this.not_full.signal();
+            return b;
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading from pipe");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) { return 0; }
+        this.lock.lock();
+        try {
+            while (this.written == this.read) {
+                if (this.reader_closed) { throw new IOException("Pipe closed"); }
+                if (this.writer_closed) { return -1; }
+                this.not_empty.await();
+            }
+            if (this.reader_closed) { throw new IOException("Pipe closed"); }
+            int capacity = this.buffer.length;
+            int total = 0;
+            while (total < len && this.written != this.read) {
+                int position  = (int) (this.read % capacity);
+                int available = (int) (this.written - this.read);
+                int n         = Math.min(len - total, Math.min(available, capacity - position));
+                System.arraycopy(this.buffer, position, b, off + total, n);
+                this.read += n;
+                total += n;
+            }
+            this.not_full.signal();
+            return total;
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading from pipe");
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected int available() throws IOException {
+        this.lock.lock();
+        try {
+            return (int) (this.written - this.read);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected void closeWriter() {
+        this.lock.lock();
+        try {
+            this.writer_closed = true;
+            this.not_empty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    protected void closeReader() {
+        this.lock.lock();
+        try {
+            this.reader_closed = true;
+            this.not_full.signalAll();
+            this.not_empty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import java.lang.reflect.*;
+
+/**
+   An interceptor whose matching depends only on the class of the target
+   and the method, not on the target instance or the arguments; if all
+   interceptors of a Delegate are static, the Delegate asks each of them
+   once per method and dispatches further invocations via a table.
+
+   matches(target, method, arguments) should return the same result as
+   matches(target.getClass(), method).
+ */
+public interface StaticInterceptor extends Interceptor {
+
+    public boolean matches(Class target_class, Method method);
+
+}
@@ -27,11 +27,17 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.util.Date;
 import java.text.SimpleDateFormat;
 
 import java.io.*;
+import java.net.URL;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /*
     [Issue:EMOSAPPStringCache] [...emos...DockerProjectVolumeImage.template...].configuration.template,deploy.bash,StringCache.java
@@ -95,15 +101,41 @@ public class StringCache {
 
         if (this.timestamp == null) {
             this.timestamp = (new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS")).format(new Date());
+            this.timestamp_generated = true;
         }
         
         if (this.texts == null) {
-            this.texts = new ArrayList<String>();
-            this.texts.add(null);
-            this.texts.add("");
+            this.initialiseTexts(context);
         }
 
         this.saveCacheOnExit(context);
+
+        if (this.do_save_cache && this.cache != null && config.get(context, "MultiProcess", false)) {
+            this.ranges = new StringCacheRanges(context, this.cache, config.get(context, "RangeSize", 1000));
+            this.flush_threshold = config.get(context, "FlushThreshold", 100);
+            this.refresh_interval = config.get(context, "RefreshInterval", 250);
+            this.timestamp = this.ranges.initialise(context, this.timestamp, this.timestamp_generated, this.size);
+            this.ranges.readSegments(context, this);
+        } else if (this.do_save_cache && this.cache != null && config.get(context, "Journal", false)) {
+            this.journal = this.createJournal(context);
+            this.journal.replay(context, this);
+        }
+    }
+
+    protected StringCacheJournal journal;
+
+    protected StringCacheJournal createJournal(CallContext context) {
+        return new StringCacheJournal(context, this, this.cache, config.get(context, "JournalSync", "Batch"), config.get(context, "JournalBatchSize", 64), config.get(context, "JournalCompactThreshold", 10000));
+    }
+
+    /**
+       Writes the complete cache and empties the journal.
+     */
+    public synchronized void compactJournal(CallContext context) {
+        if (this.journal == null) { return; }
+        this.journal.flush(context);
+        this.writeCacheFile(context);
+        this.journal.truncate(context);
     }
 
     static volatile protected StringCache singleton;
@@ -119,12 +151,75 @@ public class StringCache {
         return singleton;
     }
 
+    static protected final int initial_capacity = 1024;
+
+    protected void initialiseTexts(CallContext context) {
+        this.texts = new String[initial_capacity];
+        this.texts[0] = null;
+        this.texts[1] = "";
+        this.size = 2;
+    }
+
     protected String timestamp;
-    protected List<String> texts;
-    protected Map<String,Integer> map;
+    // no cache file loaded, the timestamp may still be taken from the
+    // journal or the ranges file
+    protected boolean timestamp_generated;
+
+    // texts are only appended while holding the instance lock; readers
+    // access the array without locking: an index is either known from
+    // a loaded cache or has been obtained via the map, which is filled
+    // after the array slot has been written
+    protected volatile String[] texts;
+    protected volatile int size;
+    protected volatile Map<String,Integer> map;
+
+    // if loaded from a random access file, texts are decoded on first request
+    protected StringCacheFile mapped_file;
+    protected int mapped_size;
+
+    protected String getLoadedText(CallContext context, int index) {
+        String[] current_texts = this.texts;
+        if (index >= current_texts.length) { return null; }
+        String text = current_texts[index];
+        if (text == null && index < this.mapped_size) {
+            text = this.mapped_file.getText(context, index);
+            current_texts[index] = text;
+        }
+        return text;
+    }
 
     public String getText(CallContext context, int index) {
-        return this.texts.get(index);
+        String text = this.getLoadedText(context, index);
+        if (text == null && index > 0 && this.ranges != null && this.refresh(context, index)) {
+            text = this.getLoadedText(context, index);
+        }
+        return text;
+    }
+
+    public int getSize(CallContext context) {
+        return this.size;
+    }
+
+    protected List<String> getTextList(CallContext context) {
+        int current_size = this.size;
+        List<String> text_list = new ArrayList<String>(current_size);
+        for (int i=0; i<current_size; i++) {
+            text_list.add(this.getLoadedText(context, i));
+        }
+        return text_list;
+    }
+
+    protected void setTextList(CallContext context, List<String> text_list) {
+        this.texts = text_list.toArray(new String[Math.max(text_list.size(), initial_capacity)]);
+        this.size = text_list.size();
+    }
+
+    protected void setMappedFile(CallContext context, StringCacheFile mapped_file) {
+        this.timestamp   = mapped_file.getTimestamp(context);
+        this.mapped_file = mapped_file;
+        this.mapped_size = mapped_file.getSize(context);
+        this.texts = new String[Math.max(this.mapped_size, initial_capacity)];
+        this.size = this.mapped_size;
     }
 
     public String getTimestamp(CallContext context) {
@@ -138,14 +233,158 @@ public class StringCache {
         }
     }
 
-    public synchronized int putText(CallContext context, String text) {
+    public int putText(CallContext context, String text) {
         if (text == null) { return 0; }
+        Map<String,Integer> current_map = this.map;
+        if (current_map != null) {
+            Integer index = current_map.get(text);
+            if (index != null) { return index; }
+        }
+        return this.addText(context, text);
+    }
+
+    // multi process support, see StringCacheRanges
+    protected StringCacheRanges ranges;
+    protected int               range_next;
+    protected int               range_end;
+    protected File              segment;
+    protected List<Integer>     pending_indices;
+    protected List<String>      pending_texts;
+    protected int               flush_threshold;
+    protected long              refresh_interval;
+    protected long              next_refresh;
+
+    /**
+       Reads texts added by other runtimes meanwhile, if the index lies
+       within a range reserved by another runtime; at most once per
+       RefreshInterval milliseconds. Returns false if nothing was read.
+     */
+    protected synchronized boolean refresh(CallContext context, int index) {
+        if (this.getLoadedText(context, index) != null) { return true; }
+        long now = System.currentTimeMillis();
+        if (now < this.next_refresh) { return false; }
+        this.next_refresh = now + this.refresh_interval;
+        if (this.ranges.isReservedByOther(context, index) == false) { return false; }
+        this.ranges.readSegments(context, this);
+        return true;
+    }
+
+    // used when reading segments of other runtimes
+    protected synchronized void setText(CallContext context, int index, String text) {
+        String[] current_texts = this.ensureCapacity(context, index);
+        if (current_texts[index] == null) {
+            current_texts[index] = text;
+        }
+        this.texts = current_texts;
+        if (index >= this.size) { this.size = index + 1; }
+        if (this.map != null) { this.map.putIfAbsent(text, index); }
+    }
+
+    /**
+       Adds texts from the cache file on disk which are not known yet,
+       i.e. texts merged there by other runtimes meanwhile; known texts
+       are kept. Called by StringCacheRanges while holding its lock.
+     */
+    protected synchronized void reloadCacheFile(CallContext context) {
+        File f = new File(this.cache);
+        if (f.exists() == false) { return; }
+        // unchanged since the last reload, texts are known already
+        if (f.lastModified() == this.reloaded_modified && f.length() == this.reloaded_length) { return; }
+        this.reloaded_modified = f.lastModified();
+        this.reloaded_length   = f.length();
+        if (StringCacheFile.isRandomAccessFormat(context, f)) {
+            StringCacheFile file = StringCacheFile.open(context, f);
+            if (this.matchesTimestamp(context, file.getTimestamp(context)) == false) { return; }
+            int file_size = file.getSize(context);
+            for (int i=1; i<file_size; i++) {
+                if (this.getLoadedText(context, i) == null) {
+                    String text = file.getText(context, i);
+                    if (text != null) { this.setText(context, i, text); }
+                }
+            }
+            return;
+        }
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                String file_timestamp = (String) ois.readObject();
+                if (this.matchesTimestamp(context, file_timestamp) == false) { return; }
+                // overlays contain the size of the base before the texts
+                Object texts_or_base_size = ois.readObject();
+                int index = 0;
+                if (texts_or_base_size instanceof Integer) {
+                    index = (Integer) texts_or_base_size;
+                    texts_or_base_size = ois.readObject();
+                }
+                for (String text : (List<String>) texts_or_base_size) {
+                    if (text != null && index > 0 && this.getLoadedText(context, index) == null) {
+                        this.setText(context, index, text);
+                    }
+                    index++;
+                }
+            } finally {
+                ois.close();
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot reload string cache from '%(file)'", "file", this.cache);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        } catch (ClassNotFoundException cnfe) {
+            CustomaryContext.create((Context)context).throwInvalidState(context, cnfe, "Cannot reload string cache from '%(file)', class unexpectedly not found (resource should contain List<String>)", "file", this.cache);
+            throw (ExceptionInvalidState) null; // compiler insists
+        }
+    }
+
+    protected long reloaded_modified;
+    protected long reloaded_length;
+
+    protected boolean matchesTimestamp(CallContext context, String file_timestamp) {
+        if (file_timestamp != null && file_timestamp.equals(this.timestamp)) { return true; }
+        if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache file '%(cache)' has timestamp '%(filestamp)' instead of '%(timestamp)', not reloaded", "cache", this.cache, "filestamp", file_timestamp, "timestamp", this.timestamp); }
+        return false;
+    }
+
+    protected String[] ensureCapacity(CallContext context, int index) {
+        String[] current_texts = this.texts;
+        if (index >= current_texts.length) {
+            current_texts = Arrays.copyOf(current_texts, Math.max(current_texts.length * 2, index + 1));
+        }
+        return current_texts;
+    }
+
+    protected int allocateIndex(CallContext context) {
+        if (this.ranges == null) { return this.size; }
+        if (this.range_next == this.range_end) {
+            this.range_next = this.ranges.reserveRange(context);
+            this.range_end  = this.range_next + this.ranges.getRangeSize(context);
+            if (this.segment == null) {
+                this.segment = this.ranges.getSegmentFile(context, this.range_next);
+                this.ranges.claimSegment(context, this.segment);
+                this.pending_indices = new ArrayList<Integer>();
+                this.pending_texts = new ArrayList<String>();
+            }
+        }
+        return this.range_next++;
+    }
+
+    /**
+       Writes texts added by this runtime since the last flush to its
+       segment file, so that other runtimes can see them.
+     */
+    public synchronized void flushCache(CallContext context) {
+        if (this.ranges == null || this.pending_indices == null || this.pending_indices.isEmpty()) { return; }
+        this.ranges.appendToSegment(context, this.segment, this.pending_indices, this.pending_texts);
+        this.pending_indices.clear();
+        this.pending_texts.clear();
+    }
+
+    protected synchronized int addText(CallContext context, String text) {
         if (this.map == null) {
-            this.map = new HashMap<String,Integer>();
-            int i=0;
-            for (String t : this.texts) {
-                this.map.put(t, i++);
+            Map<String,Integer> new_map = new ConcurrentHashMap<String,Integer>(Math.max(16, this.size * 2));
+            for (int i=1; i<this.size; i++) {
+                String t = this.getLoadedText(context, i);
+                if (t != null) { new_map.putIfAbsent(t, i); }
             }
+            this.map = new_map;
         }
         Integer index = this.map.get(text);
         if (index == null) {
@@ -153,9 +392,23 @@ public class StringCache {
                 CustomaryContext.create((Context)context).throwConfigurationError(context, "String cache is used, but not configured for save on exit");
                 throw (ExceptionConfigurationError) null; // compiler insists
             }
-            index = this.texts.size();
-            this.texts.add(text);
+            index = this.allocateIndex(context);
+            String[] current_texts = this.ensureCapacity(context, index);
+            current_texts[index] = text;
+            this.texts = current_texts;
+            if (index >= this.size) { this.size = index + 1; }
             this.map.put(text, index);
+            if (this.ranges != null) {
+                this.pending_indices.add(index);
+                this.pending_texts.add(text);
+                if (this.pending_indices.size() >= this.flush_threshold) {
+                    this.flushCache(context);
+                }
+            } else if (this.journal != null) {
+                if (this.journal.append(context, index, text)) {
+                    this.compactJournal(context);
+                }
+            }
         }
         return index;
     }
@@ -177,42 +430,140 @@ public class StringCache {
                 return; // no place to save
             }
 
-            try {
-                File f = new File(this.cache);
-                f.setWritable(true);
-                FileOutputStream fos = new FileOutputStream(f);
-                ObjectOutputStream oos = new ObjectOutputStream(fos);
-                oos.writeObject(this.timestamp);
-                oos.writeObject(this.texts);
-                oos.close();
-                fos.close();
-            } catch (IOException ioe) {
-                CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot save string cache to '%(file)'", "file", this.cache);
-                throw (ExceptionEnvironmentFailure) null; // compiler insists
+            if (this.ranges != null) {
+                synchronized (this) {
+                    this.flushCache(context);
+                    this.ranges.merge(context, this);
+                }
+                return;
+            }
+
+            if (this.journal != null) {
+                // texts are already in the journal, which is compacted once it has grown
+                this.journal.flush(context);
+                return;
+            }
+
+            this.writeCacheFile(context);
+        }
+    }
+
+    protected void writeCacheFile(CallContext context) {
+        if (this.base_cache != null) {
+            this.writeOverlay(context);
+            return;
+        }
+
+        if (config.get(context, "CacheFormat", "Serialized").equals("RandomAccess")) {
+            StringCacheFile.write(context, new File(this.cache), this.timestamp, this.getTextList(context));
+            return;
+        }
+
+        try {
+            this.writeSerialized(context, this.timestamp, this.getTextList(context));
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot save string cache to '%(file)'", "file", this.cache);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    /*
+       Like StringCacheFile.write, via a temporary file moved into place,
+       since the file may be a mapped RandomAccess file, which must not
+       be truncated while in use.
+    */
+    protected void writeSerialized(CallContext context, Object... objects) throws IOException {
+        File f = new File(this.cache);
+        File temporary = new File(f.getPath() + ".tmp");
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            for (Object object : objects) {
+                oos.writeObject(object);
             }
+        } finally {
+            oos.close();
         }
+        Files.move(temporary.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
+    /*
+       If a BaseCache is configured (typically a pre-deployed
+       //JavaResource/), it is treated as read only; the Cache file then
+       only contains the texts added on top of it (the overlay), i.e.
+       the timestamp, the size of the base and the added texts.
+
+       A base in random access format is mapped, not read into the heap:
+       a resource in a classpath folder directly, a resource in a jar
+       after extracting it to a temporary file; only the former is
+       shared between processes via the page cache.
+    */
+    protected String base_cache;
+    protected int    base_size;
+
     public void loadCache(CallContext context) {
         this.cache = config.get(context, "Cache", (String) null);
+        this.base_cache = config.get(context, "BaseCache", (String) null);
+
+        if (this.base_cache != null) {
+            boolean base_loaded = this.loadCache(context, this.base_cache);
+            if (this.texts == null) {
+                this.initialiseTexts(context);
+            }
+            this.base_size = this.size;
+            if (this.cache != null) {
+                this.loadOverlay(context, base_loaded);
+            }
+            return;
+        }
+
         if (this.cache == null) {
             return; // no place to load from
         }
 
+        this.loadCache(context, this.cache);
+    }
+
+    protected boolean loadCache(CallContext context, String location) {
         try {
             InputStream is = null;
-            if (this.cache.startsWith("//JavaResource/"))  {
-                String scr = this.cache.substring(cache.length() > 15 && this.cache.charAt(15) == '/' ? 16 : 15);
-                is = this.getClass().getClassLoader().getResourceAsStream(scr);
-                if (is == null) {
-                    if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache configured ('%(cache)'), but not found, this may cause trouble lateron", "cache", this.cache); }
-                    return; // nothing to load
+            if (location.startsWith("//JavaResource/"))  {
+                String scr = location.substring(location.length() > 15 && location.charAt(15) == '/' ? 16 : 15);
+                URL url = this.getClass().getClassLoader().getResource(scr);
+                if (url == null) {
+                    if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache configured ('%(cache)'), but not found, this may cause trouble lateron", "cache", location); }
+                    return false; // nothing to load
                 }
+                if (url.getProtocol().equals("file")) {
+                    File f;
+                    try {
+                        f = new File(url.toURI());
+                    } catch (URISyntaxException use) {
+                        f = new File(url.getPath());
+                    }
+                    if (f.exists() && StringCacheFile.isRandomAccessFormat(context, f)) {
+                        this.setMappedFile(context, StringCacheFile.open(context, f));
+                        return true;
+                    }
+                }
+                BufferedInputStream bis = new BufferedInputStream(url.openStream());
+                byte[] head = new byte[4];
+                bis.mark(head.length);
+                int head_length = bis.readNBytes(head, 0, head.length);
+                bis.reset();
+                if (head_length == head.length && StringCacheFile.isRandomAccessFormat(context, head)) {
+                    this.setMappedFile(context, this.extractAndOpen(context, bis));
+                    return true;
+                }
+                is = bis;
             } else {
-                File f = new File(this.cache);
+                File f = new File(location);
                 if (f.exists() == false) {
-                    if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache configured ('%(cache)'), but not found, this may cause trouble lateron", "cache", this.cache); }
-                    return; // nothing to load
+                    if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache configured ('%(cache)'), but not found, this may cause trouble lateron", "cache", location); }
+                    return false; // nothing to load
+                }
+                if (StringCacheFile.isRandomAccessFormat(context, f)) {
+                    this.setMappedFile(context, StringCacheFile.open(context, f));
+                    return true;
                 }
                 FileInputStream fis = new FileInputStream(f);
                 is = fis;
@@ -220,15 +571,83 @@ public class StringCache {
 
             ObjectInputStream ois = new ObjectInputStream(is);
             this.timestamp = (String) ois.readObject();
-            this.texts = (List<String>) ois.readObject();
+            this.setTextList(context, (List<String>) ois.readObject());
             ois.close();
             is.close();
+            return true;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot load string cache from '%(file)'", "file", location);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        } catch (ClassNotFoundException cnfe) {
+            CustomaryContext.create((Context)context).throwInvalidState(context, cnfe, "Cannot load string cache from '%(file)', class unexpectedly not found (resource should contain List<String>)", "file", location);
+            throw (ExceptionInvalidState) null; // compiler insists
+        }
+    }
+
+    protected StringCacheFile extractAndOpen(CallContext context, InputStream is) throws IOException {
+        File extracted = File.createTempFile("string-cache", ".scm");
+        try {
+            Files.copy(is, extracted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            is.close();
+            return StringCacheFile.open(context, extracted);
+        } finally {
+            // the mapping remains valid on systems which allow deleting
+            // mapped files
+            if (extracted.delete() == false) {
+                extracted.deleteOnExit();
+            }
+        }
+    }
+
+    protected void loadOverlay(CallContext context, boolean base_loaded) {
+        File f = new File(this.cache);
+        if (f.exists() == false) {
+            return; // nothing added yet
+        }
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                String overlay_timestamp = (String) ois.readObject();
+                Object overlay_base_size = ois.readObject();
+                if (    (overlay_base_size instanceof Integer) == false
+                     || ((Integer) overlay_base_size) != this.base_size
+                     || (base_loaded && overlay_timestamp.equals(this.timestamp) == false)
+                   ) {
+                    if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache overlay '%(cache)' does not match base '%(base)', ignored", "cache", this.cache, "base", this.base_cache); }
+                    return;
+                }
+                this.timestamp = overlay_timestamp;
+                List<String> overlay = (List<String>) ois.readObject();
+                String[] current_texts = this.ensureCapacity(context, this.base_size + overlay.size());
+                int index = this.base_size;
+                for (String text : overlay) {
+                    current_texts[index++] = text;
+                }
+                this.texts = current_texts;
+                this.size = index;
+            } finally {
+                ois.close();
+            }
         } catch (IOException ioe) {
-            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot load string cache from '%(file)'", "file", this.cache);
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot load string cache overlay from '%(file)'", "file", this.cache);
             throw (ExceptionEnvironmentFailure) null; // compiler insists
         } catch (ClassNotFoundException cnfe) {
-            CustomaryContext.create((Context)context).throwInvalidState(context, cnfe, "Cannot load string cache from '%(file)', class unexpectedly not found (resource should contain List<String>)", "file", this.cache);
+            CustomaryContext.create((Context)context).throwInvalidState(context, cnfe, "Cannot load string cache overlay from '%(file)', class unexpectedly not found (resource should contain List<String>)", "file", this.cache);
             throw (ExceptionInvalidState) null; // compiler insists
         }
     }
+
+    protected void writeOverlay(CallContext context) {
+        int current_size = this.size;
+        List<String> overlay = new ArrayList<String>(current_size - this.base_size);
+        for (int i=this.base_size; i<current_size; i++) {
+            overlay.add(this.getLoadedText(context, i));
+        }
+        try {
+            this.writeSerialized(context, this.timestamp, Integer.valueOf(this.base_size), overlay);
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot save string cache overlay to '%(file)'", "file", this.cache);
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
 }
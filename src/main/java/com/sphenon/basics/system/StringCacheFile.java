@@ -0,0 +1,201 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.List;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+    Random access string cache file format, all numbers big endian:
+
+      int     magic ('SCM1')
+      int     length of timestamp
+      byte[]  timestamp, UTF-8
+      int     number of texts
+      int[2]  per text: offset relative to blob start, length in bytes
+              (length -1 denotes a null text)
+      byte[]  blob, UTF-8
+
+    Files are opened via FileChannel.map, texts are decoded on request.
+*/
+
+public class StringCacheFile {
+
+    static final public int MAGIC = 0x53434D31;
+
+    protected ByteBuffer buffer;
+    protected String     timestamp;
+    protected int        size;
+    protected int        table_start;
+    protected int        blob_start;
+
+    protected StringCacheFile(CallContext context, ByteBuffer buffer) {
+        this.buffer = buffer;
+        int magic = buffer.getInt(0);
+        if (magic != MAGIC) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "String cache data is not in random access format");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        int timestamp_length = buffer.getInt(4);
+        this.timestamp   = this.decode(8, timestamp_length);
+        this.size        = buffer.getInt(8 + timestamp_length);
+        this.table_start = 12 + timestamp_length;
+        this.blob_start  = this.table_start + 8 * this.size;
+    }
+
+    static public boolean isRandomAccessFormat(CallContext context, byte[] head) {
+        return head != null && head.length >= 4 && ByteBuffer.wrap(head).getInt(0) == MAGIC;
+    }
+
+    static public boolean isRandomAccessFormat(CallContext context, File file) {
+        if (file.length() < 4) { return false; }
+        try {
+            DataInputStream dis = new DataInputStream(new FileInputStream(file));
+            try {
+                return dis.readInt() == MAGIC;
+            } finally {
+                dis.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    static public StringCacheFile open(CallContext context, File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // mapping stays valid after the channel is closed
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new StringCacheFile(context, mapped);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot map string cache file '%(file)'", "file", file.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    static public StringCacheFile open(CallContext context, byte[] data) {
+        return new StringCacheFile(context, ByteBuffer.wrap(data));
+    }
+
+    public String getTimestamp(CallContext context) {
+        return this.timestamp;
+    }
+
+    public int getSize(CallContext context) {
+        return this.size;
+    }
+
+    public String getText(CallContext context, int index) {
+        int entry = this.table_start + 8 * index;
+        int length = this.buffer.getInt(entry + 4);
+        if (length == -1) { return null; }
+        return this.decode(this.blob_start + this.buffer.getInt(entry), length);
+    }
+
+    protected String decode(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset);
+        view.get(bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static public void write(CallContext context, File file, String timestamp, List<String> texts) {
+        byte[][] encoded = new byte[texts.size()][];
+        int blob_length = 0;
+        int i = 0;
+        for (String text : texts) {
+            if (text != null) {
+                encoded[i] = text.getBytes(StandardCharsets.UTF_8);
+                blob_length += encoded[i].length;
+            }
+            i++;
+        }
+        byte[] timestamp_bytes = (timestamp == null ? "" : timestamp).getBytes(StandardCharsets.UTF_8);
+
+        // written to a temporary file first and then moved into place,
+        // so that a concurrent mapping of the old file remains intact
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(timestamp_bytes.length);
+                dos.write(timestamp_bytes);
+                dos.writeInt(encoded.length);
+                int offset = 0;
+                for (byte[] bytes : encoded) {
+                    dos.writeInt(offset);
+                    dos.writeInt(bytes == null ? -1 : bytes.length);
+                    if (bytes != null) { offset += bytes.length; }
+                }
+                for (byte[] bytes : encoded) {
+                    if (bytes != null) { dos.write(bytes); }
+                }
+            } finally {
+                dos.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot save string cache to '%(file)'", "file", file.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    /**
+       Converts a cache file in the original serialized format
+       (timestamp and List&lt;String&gt; via ObjectOutputStream) into
+       the random access format.
+     */
+    static public void convert(CallContext context, File serialized, File random_access) {
+        String timestamp;
+        List<String> texts;
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(serialized)));
+            try {
+                timestamp = (String) ois.readObject();
+                texts = (List<String>) ois.readObject();
+            } finally {
+                ois.close();
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot load string cache from '%(file)'", "file", serialized.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        } catch (ClassNotFoundException cnfe) {
+            CustomaryContext.create((Context)context).throwInvalidState(context, cnfe, "Cannot load string cache from '%(file)', class unexpectedly not found (resource should contain List<String>)", "file", serialized.getPath());
+            throw (ExceptionInvalidState) null; // compiler insists
+        }
+        write(context, random_access, timestamp, texts);
+    }
+}
@@ -0,0 +1,252 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+    Append only journal of texts added to a string cache, located next
+    to the cache file as <cache>.journal; a header (int magic 'SCJ1',
+    UTF timestamp, int base size) followed by records of (int index,
+    int length, UTF-8 bytes). Same header and record format is used for
+    the segments of StringCacheRanges.
+
+    The header ties the journal to the cache file it continues: its
+    timestamp and its number of texts when the journal was started. A
+    journal not matching the loaded cache, e.g. after a new cache file
+    has been deployed, is discarded instead of replayed.
+
+    Sync policies:
+      None    records are written in batches, the OS decides when they
+              reach the disk
+      Batch   records are written in batches, each batch is forced to
+              disk
+      Always  each record is written and forced to disk immediately
+*/
+
+public class StringCacheJournal {
+
+    static final public int MAGIC = 0x53434A31;
+
+    protected StringCache string_cache;
+    protected File    file;
+    protected String  sync;
+    protected int     batch_size;
+    protected int     compact_threshold;
+
+    protected FileOutputStream file_output_stream;
+    protected DataOutputStream data_output_stream;
+
+    protected int unwritten;
+    protected int entries;
+    // number of texts of the cache file the journal continues
+    protected int base_size;
+
+    public StringCacheJournal(CallContext context, StringCache string_cache, String cache, String sync, int batch_size, int compact_threshold) {
+        this.string_cache      = string_cache;
+        this.file              = new File(cache + ".journal");
+        this.sync              = sync;
+        this.batch_size        = sync.equals("Always") ? 1 : Math.max(1, batch_size);
+        this.compact_threshold = compact_threshold;
+    }
+
+    public File getFile(CallContext context) {
+        return this.file;
+    }
+
+    static public void writeHeader(DataOutputStream dos, String timestamp, int base_size) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeUTF(timestamp);
+        dos.writeInt(base_size);
+    }
+
+    static public void writeRecord(DataOutputStream dos, int index, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(index);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    /**
+       Reads the records from the given offset on into the cache and
+       returns the end of the file, the offset to continue from. The file
+       must not be appended to meanwhile; a truncated last record, as
+       left by a crash during writing, is skipped.
+     */
+    static public long replay(CallContext context, File file, long offset, StringCache cache) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long end = channel.size();
+            if (offset < end) {
+                channel.position(offset);
+                replay(context, file, new DataInputStream(new BufferedInputStream(fis)), cache);
+            }
+            return end;
+        } finally {
+            fis.close();
+        }
+    }
+
+    static protected int replay(CallContext context, File file, DataInputStream dis, StringCache cache) throws IOException {
+        int count = 0;
+        try {
+            while (true) {
+                int index;
+                try {
+                    index = dis.readInt();
+                } catch (EOFException eofe) {
+                    break;
+                }
+                byte[] bytes = new byte[dis.readInt()];
+                dis.readFully(bytes);
+                cache.setText(context, index, new String(bytes, StandardCharsets.UTF_8));
+                count++;
+            }
+        } catch (EOFException eofe) {
+            if ((StringCache.notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache journal '%(file)' is truncated", "file", file.getPath()); }
+        }
+        return count;
+    }
+
+    /**
+       Replays the journal if its header matches the cache, otherwise
+       the journal is discarded.
+     */
+    public synchronized int replay(CallContext context, StringCache cache) {
+        this.base_size = cache.size;
+        if (this.file.exists() == false) { return 0; }
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            boolean matches;
+            try {
+                matches = this.readHeader(context, dis, cache);
+                if (matches) {
+                    this.entries = replay(context, this.file, dis, cache);
+                }
+            } finally {
+                dis.close();
+            }
+            if (matches == false) {
+                this.truncate(context);
+                this.base_size = cache.size;
+            }
+            return this.entries;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot replay string cache journal '%(file)'", "file", this.file.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    protected boolean readHeader(CallContext context, DataInputStream dis, StringCache cache) throws IOException {
+        String timestamp = null;
+        int    base_size = -1;
+        try {
+            if (dis.readInt() == MAGIC) {
+                timestamp = dis.readUTF();
+                base_size = dis.readInt();
+            }
+        } catch (EOFException eofe) {
+        }
+        if (timestamp != null && base_size == cache.size) {
+            if (cache.timestamp_generated) {
+                // cache file not written yet, the journal is all there is
+                cache.timestamp = timestamp;
+                cache.timestamp_generated = false;
+                this.base_size = base_size;
+                return true;
+            }
+            if (timestamp.equals(cache.timestamp)) {
+                this.base_size = base_size;
+                return true;
+            }
+        }
+        if ((StringCache.notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache journal '%(file)' (timestamp '%(journalstamp)', base size %(journalsize)) does not match cache (timestamp '%(timestamp)', size %(size)), discarded", "file", this.file.getPath(), "journalstamp", timestamp, "journalsize", t.s(base_size), "timestamp", cache.timestamp, "size", t.s(cache.size)); }
+        return false;
+    }
+
+    /**
+       Returns true if the journal has grown beyond the compaction
+       threshold.
+     */
+    public synchronized boolean append(CallContext context, int index, String text) {
+        try {
+            if (this.data_output_stream == null) {
+                SystemCommandUtilities.ensureParentFolderExists(context, this.file);
+                boolean empty = this.file.exists() == false || this.file.length() == 0;
+                this.file_output_stream = new FileOutputStream(this.file, true);
+                this.data_output_stream = new DataOutputStream(new BufferedOutputStream(this.file_output_stream, 65536));
+                if (empty) {
+                    writeHeader(this.data_output_stream, this.string_cache.timestamp, this.base_size);
+                }
+            }
+            writeRecord(this.data_output_stream, index, text);
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot write to string cache journal '%(file)'", "file", this.file.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+        this.entries++;
+        if (++this.unwritten >= this.batch_size) {
+            this.flush(context);
+        }
+        return this.compact_threshold > 0 && this.entries >= this.compact_threshold;
+    }
+
+    public synchronized void flush(CallContext context) {
+        if (this.data_output_stream == null || this.unwritten == 0) { return; }
+        try {
+            this.data_output_stream.flush();
+            if (this.sync.equals("None") == false) {
+                this.file_output_stream.getChannel().force(false);
+            }
+            this.unwritten = 0;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot flush string cache journal '%(file)'", "file", this.file.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    /**
+       To be called after the complete cache has been written; the
+       journal starts empty afterwards.
+     */
+    public synchronized void truncate(CallContext context) {
+        this.flush(context);
+        try {
+            if (this.data_output_stream != null) {
+                this.data_output_stream.close();
+                this.data_output_stream = null;
+                this.file_output_stream = null;
+            }
+            if (this.file.exists() && this.file.delete() == false) {
+                NotificationContext.sendError(context, "Could not remove compacted string cache journal '%(file)'", "file", this.file.getPath());
+            }
+            this.entries = 0;
+            this.base_size = this.string_cache.size;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot close string cache journal '%(file)'", "file", this.file.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+}
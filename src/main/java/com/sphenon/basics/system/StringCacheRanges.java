@@ -0,0 +1,391 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/*
+    Coordinates several runtimes writing to the same string cache.
+
+    Files, all located next to the cache file:
+
+      <cache>.ranges        range index: timestamp of the cache and next
+                            free index; also serves as lock file for all
+                            other operations
+      <cache>.segment-<n>   texts added by the runtime which reserved
+                            range <n> first; append only, same header
+                            and record format as StringCacheJournal
+      <cache>.owner-<n>     locked by the runtime writing segment <n> as
+                            long as it is running
+
+    All file operations are performed while holding an exclusive
+    FileChannel lock on the range index.
+
+    On merge the cache file on disk is reloaded first, so texts merged
+    there by other runtimes are kept; segments are only removed once
+    merged and once their owner has exited.
+
+    A range index with a timestamp other than the one of the loaded
+    cache file stems from a previously deployed cache; it is reset, and
+    segments with another timestamp in their header are ignored.
+    Segments are read incrementally, continuing where the last read
+    of each segment ended.
+*/
+
+public class StringCacheRanges {
+
+    protected File   cache_file;
+    protected File   index_file;
+    protected int    range_size;
+
+    protected RandomAccessFile index_access;
+    protected FileLock         index_lock;
+
+    protected File             own_segment;
+    protected RandomAccessFile owner_access;
+    protected FileLock         owner_lock;
+
+    // timestamp shared by all runtimes using this cache, and the first
+    // index not contained in the cache file
+    protected String           timestamp;
+    protected int              base_next;
+    protected List<Integer>    own_ranges = new ArrayList<Integer>();
+    // offset to continue reading from per segment, -1 if ignored
+    protected Map<String,Long> segment_offsets = new HashMap<String,Long>();
+
+    public StringCacheRanges(CallContext context, String cache, int range_size) {
+        this.cache_file = new File(cache);
+        this.index_file = new File(cache + ".ranges");
+        this.range_size = range_size;
+    }
+
+    public int getRangeSize(CallContext context) {
+        return this.range_size;
+    }
+
+    public File getSegmentFile(CallContext context, int range_start) {
+        return new File(this.cache_file.getPath() + ".segment-" + range_start);
+    }
+
+    protected File getOwnerFile(CallContext context, File segment) {
+        String prefix = this.cache_file.getName() + ".segment-";
+        return new File(segment.getParentFile(), this.cache_file.getName() + ".owner-" + segment.getName().substring(prefix.length()));
+    }
+
+    /**
+       Marks the segment as written by this runtime, until it exits.
+     */
+    public synchronized void claimSegment(CallContext context, File segment) {
+        File owner_file = this.getOwnerFile(context, segment);
+        try {
+            SystemCommandUtilities.ensureParentFolderExists(context, owner_file);
+            this.owner_access = new RandomAccessFile(owner_file, "rw");
+            this.owner_lock   = this.owner_access.getChannel().lock();
+            this.own_segment  = segment;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot claim string cache segment '%(file)'", "file", segment.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        }
+    }
+
+    /*
+        Never called for the own segment: closing a channel on the own
+        owner file would release the own lock.
+    */
+    protected boolean isOwnerRunning(CallContext context, File segment) {
+        File owner_file = this.getOwnerFile(context, segment);
+        if (owner_file.exists() == false) { return false; }
+        try (RandomAccessFile owner_access = new RandomAccessFile(owner_file, "rw")) {
+            FileLock lock = owner_access.getChannel().tryLock();
+            if (lock == null) { return true; }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException ofle) {
+            return true;
+        } catch (IOException ioe) {
+            return true;
+        }
+    }
+
+    protected void removeSegment(CallContext context, File segment) {
+        if (segment.delete() == false && segment.exists()) {
+            NotificationContext.sendError(context, "Could not remove merged string cache segment '%(file)'", "file", segment.getPath());
+            return;
+        }
+        this.getOwnerFile(context, segment).delete();
+    }
+
+    protected void lock(CallContext context) throws IOException {
+        SystemCommandUtilities.ensureParentFolderExists(context, this.index_file);
+        this.index_access = new RandomAccessFile(this.index_file, "rw");
+        try {
+            this.index_lock = this.index_access.getChannel().lock();
+        } catch (IOException ioe) {
+            this.index_access.close();
+            this.index_access = null;
+            throw ioe;
+        }
+    }
+
+    protected void unlock(CallContext context) {
+        try {
+            if (this.index_lock != null && this.index_lock.isValid()) {
+                this.index_lock.release();
+            }
+            if (this.index_access != null) {
+                this.index_access.close();
+            }
+        } catch (IOException ioe) {
+            NotificationContext.sendError(context, "Could not release string cache range index '%(file)': %(reason)", "file", this.index_file.getPath(), "reason", ioe);
+        } finally {
+            this.index_lock = null;
+            this.index_access = null;
+        }
+    }
+
+    protected String stored_timestamp;
+    protected int    stored_next;
+
+    protected boolean readIndex(CallContext context) throws IOException {
+        if (this.index_access.length() == 0) { return false; }
+        this.index_access.seek(0);
+        this.stored_timestamp = this.index_access.readUTF();
+        this.stored_next      = this.index_access.readInt();
+        return true;
+    }
+
+    protected void writeIndex(CallContext context) throws IOException {
+        this.index_access.setLength(0);
+        this.index_access.seek(0);
+        this.index_access.writeUTF(this.stored_timestamp);
+        this.index_access.writeInt(this.stored_next);
+        this.index_access.getChannel().force(false);
+    }
+
+    protected void throwFailure(CallContext context, IOException ioe) {
+        CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot access string cache range index '%(file)'", "file", this.index_file.getPath());
+        throw (ExceptionEnvironmentFailure) null; // compiler insists
+    }
+
+    /**
+       Creates the range index if necessary and returns the timestamp
+       shared by all runtimes using this cache. If a cache file has been
+       loaded, i.e. the timestamp is not generated, an index with another
+       timestamp is reset.
+     */
+    public synchronized String initialise(CallContext context, String timestamp, boolean timestamp_generated, int minimum_next) {
+        try {
+            this.lock(context);
+            if (this.readIndex(context) == false) {
+                this.stored_timestamp = timestamp;
+                this.stored_next      = minimum_next;
+                this.writeIndex(context);
+            } else if (timestamp_generated == false && this.stored_timestamp.equals(timestamp) == false) {
+                if ((StringCache.notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache range index '%(file)' has timestamp '%(indexstamp)' instead of '%(timestamp)' of the loaded cache, reset", "file", this.index_file.getPath(), "indexstamp", this.stored_timestamp, "timestamp", timestamp); }
+                this.stored_timestamp = timestamp;
+                this.stored_next      = minimum_next;
+                this.writeIndex(context);
+                for (File segment : this.listSegments(context)) {
+                    if (this.isOwnerRunning(context, segment) == false) {
+                        this.removeSegment(context, segment);
+                    }
+                }
+            } else if (this.stored_next < minimum_next) {
+                this.stored_next      = minimum_next;
+                this.writeIndex(context);
+            }
+            this.timestamp = this.stored_timestamp;
+            this.base_next = minimum_next;
+            return this.stored_timestamp;
+        } catch (IOException ioe) {
+            this.throwFailure(context, ioe);
+            return null;
+        } finally {
+            this.unlock(context);
+        }
+    }
+
+    public synchronized int reserveRange(CallContext context) {
+        try {
+            this.lock(context);
+            this.readIndex(context);
+            int range_start = this.stored_next;
+            this.stored_next += this.range_size;
+            this.writeIndex(context);
+            this.own_ranges.add(range_start);
+            return range_start;
+        } catch (IOException ioe) {
+            this.throwFailure(context, ioe);
+            return -1;
+        } finally {
+            this.unlock(context);
+        }
+    }
+
+    public synchronized void appendToSegment(CallContext context, File segment, List<Integer> indices, List<String> texts) {
+        try {
+            this.lock(context);
+            boolean empty = segment.exists() == false || segment.length() == 0;
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment, true)));
+            try {
+                if (empty) {
+                    StringCacheJournal.writeHeader(dos, this.timestamp, this.base_next);
+                }
+                for (int i=0; i<indices.size(); i++) {
+                    StringCacheJournal.writeRecord(dos, indices.get(i), texts.get(i));
+                }
+            } finally {
+                dos.close();
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentFailure(context, ioe, "Cannot flush string cache segment '%(file)'", "file", segment.getPath());
+            throw (ExceptionEnvironmentFailure) null; // compiler insists
+        } finally {
+            this.unlock(context);
+        }
+    }
+
+    /**
+       Returns true if the index lies within a range reserved by another
+       runtime; the range index is read again if the index lies beyond
+       all ranges reserved so far.
+     */
+    public synchronized boolean isReservedByOther(CallContext context, int index) {
+        if (index < this.base_next) { return false; }
+        if (index >= this.stored_next) {
+            try {
+                this.lock(context);
+                this.readIndex(context);
+            } catch (IOException ioe) {
+                this.throwFailure(context, ioe);
+            } finally {
+                this.unlock(context);
+            }
+            if (index >= this.stored_next) { return false; }
+        }
+        for (int range_start : this.own_ranges) {
+            if (index >= range_start && index < range_start + this.range_size) { return false; }
+        }
+        return true;
+    }
+
+    /**
+       Reads texts merged into the cache file and texts in segments of
+       other runtimes.
+     */
+    public synchronized void readSegments(CallContext context, StringCache cache) {
+        try {
+            this.lock(context);
+            cache.reloadCacheFile(context);
+            this.doReadSegments(context, cache);
+        } catch (IOException ioe) {
+            this.throwFailure(context, ioe);
+        } finally {
+            this.unlock(context);
+        }
+    }
+
+    protected File[] listSegments(CallContext context) {
+        final String prefix = this.cache_file.getName() + ".segment-";
+        File folder = this.cache_file.getAbsoluteFile().getParentFile();
+        File[] segments = folder.listFiles(new FilenameFilter() { public boolean accept(File dir, String name) { return name.startsWith(prefix); } });
+        return segments == null ? new File[0] : segments;
+    }
+
+    protected boolean isOwnSegment(CallContext context, File segment) {
+        return this.own_segment != null && segment.getAbsoluteFile().equals(this.own_segment.getAbsoluteFile());
+    }
+
+    protected void doReadSegments(CallContext context, StringCache cache) throws IOException {
+        this.readIndex(context);
+        for (File segment : this.listSegments(context)) {
+            if (this.isOwnSegment(context, segment)) { continue; }
+            String name   = segment.getName();
+            Long   offset = this.segment_offsets.get(name);
+            if (offset == null) {
+                offset = this.readSegmentHeader(context, segment);
+            }
+            if (offset >= 0) {
+                offset = StringCacheJournal.replay(context, segment, offset, cache);
+            }
+            this.segment_offsets.put(name, offset);
+        }
+    }
+
+    /**
+       Returns the offset of the first record, or -1 if the segment does
+       not belong to the shared timestamp.
+     */
+    protected long readSegmentHeader(CallContext context, File segment) throws IOException {
+        String segment_timestamp = null;
+        try (RandomAccessFile access = new RandomAccessFile(segment, "r")) {
+            if (access.readInt() == StringCacheJournal.MAGIC) {
+                segment_timestamp = access.readUTF();
+                access.readInt();
+                if (segment_timestamp.equals(this.timestamp)) {
+                    return access.getFilePointer();
+                }
+            }
+        } catch (EOFException eofe) {
+        }
+        if ((StringCache.notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache segment '%(file)' has timestamp '%(segmentstamp)' instead of '%(timestamp)', ignored", "file", segment.getPath(), "segmentstamp", segment_timestamp, "timestamp", this.timestamp); }
+        return -1;
+    }
+
+    /**
+       Reloads the cache file, collects all segments, writes the complete
+       cache and removes the own segment and those of runtimes which
+       have exited.
+     */
+    public synchronized void merge(CallContext context, StringCache cache) {
+        try {
+            this.lock(context);
+            cache.reloadCacheFile(context);
+            this.doReadSegments(context, cache);
+            // false if meanwhile another cache has been deployed and the index reset
+            boolean current = this.timestamp.equals(this.stored_timestamp);
+            if (current) {
+                cache.writeCacheFile(context);
+            } else {
+                if ((StringCache.notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "String cache range index '%(file)' has been reset to timestamp '%(indexstamp)', cache with timestamp '%(timestamp)' not written", "file", this.index_file.getPath(), "indexstamp", this.stored_timestamp, "timestamp", this.timestamp); }
+            }
+            for (File segment : this.listSegments(context)) {
+                if (this.isOwnSegment(context, segment) || (current && this.isOwnerRunning(context, segment) == false)) {
+                    this.removeSegment(context, segment);
+                    this.segment_offsets.remove(segment.getName());
+                }
+            }
+        } catch (IOException ioe) {
+            this.throwFailure(context, ioe);
+        } finally {
+            this.unlock(context);
+        }
+    }
+}
@@ -20,24 +20,133 @@ import com.sphenon.basics.context.classes.*;
 import com.sphenon.basics.message.*;
 import com.sphenon.basics.notification.*;
 import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
 
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.OutputStream;
-import java.io.PipedOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
 
 import java.util.concurrent.locks.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ScheduledFuture;
 
 public class SystemProcess implements ManagedResource {
 
+    static final public Class _class = SystemProcess.class;
+
     static protected long notification_level;
     static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
     static public    long getNotificationLevel() { return notification_level; }
     static { notification_level = NotificationLocationContext.getLevel(RootContext.getInitialisationContext(), "com.sphenon.basics.system.SystemProcess"); };
 
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class); };
+
+    /*
+       Supplier and listeners ("pumps") of a process run, depending on
+       configuration property 'PumpThreads', on
+
+         Platform  a new platform thread per pump (default)
+         Pooled    a shared pool of 'PumpPoolSize' threads, reused; pumps
+                   are never queued, since a process which does not
+                   consume its input while its output pumps wait could
+                   stall, so if all pool threads are busy a pump gets a
+                   thread of its own
+         Virtual   a virtual thread per pump, if available in the
+                   runtime, otherwise falls back to Pooled
+    */
+    static protected ExecutorService pump_executor;
+    static protected boolean         pump_executor_initialised;
+    static protected AtomicLong      pump_thread_count = new AtomicLong();
+
+    static protected synchronized ExecutorService getPumpExecutor(CallContext context) {
+        if (pump_executor_initialised == false) {
+            pump_executor_initialised = true;
+            String mode = config.get(context, "PumpThreads", "Platform");
+            if (mode.equals("Virtual")) {
+                try {
+                    pump_executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (Exception e) {
+                    if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "SystemProcess, virtual threads not available (%(reason)), using pooled threads", "reason", e); }
+                    mode = "Pooled";
+                }
+            }
+            if (mode.equals("Pooled")) {
+                int pool_size = config.get(context, "PumpPoolSize", 256);
+                final ThreadFactory thread_factory = new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SystemProcess-pump-" + pump_thread_count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    };
+                pump_executor = new ThreadPoolExecutor(0, pool_size, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), thread_factory, new RejectedExecutionHandler() {
+                        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                            thread_factory.newThread(runnable).start();
+                        }
+                    });
+            }
+        }
+        return pump_executor;
+    }
+
+    protected FutureTask<Object> startPump(CallContext context, String name, Runnable pump) {
+        return this.startPump(context, name, pump, null);
+    }
+
+    protected FutureTask<Object> startPump(CallContext context, String name, Runnable pump, final CompletableFuture<Void> completion) {
+        FutureTask<Object> task = new FutureTask<Object>(pump, null) {
+                protected void done() {
+                    if (completion != null) { completion.complete(null); }
+                }
+            };
+        executePump(context, name, task);
+        return task;
+    }
+
+    static protected void executePump(CallContext context, String name, Runnable runnable) {
+        ExecutorService executor = getPumpExecutor(context);
+        if (executor == null) {
+            new Thread(runnable, name).start();
+        } else {
+            executor.execute(runnable);
+        }
+    }
+
+    protected void joinPump(CallContext context, FutureTask<Object> pump, String info) {
+        try {
+            pump.get();
+        } catch (CancellationException ce) {
+            // released
+        } catch (ExecutionException ee) {
+            NotificationContext.sendError(context, "system process %(info) terminated unsuccessfully: %(reason)", "info", info, "reason", ee.getCause());
+        } catch (InterruptedException ie) {
+            NotificationContext.sendError(context, "system process %(info) terminated unsuccessfully: %(reason)", "info", info, "reason", ie);
+        }
+    }
+
 
     protected CallContext context;
     
@@ -47,18 +156,19 @@ public class SystemProcess implements ManagedResource {
 
     protected java.lang.Process process;
 
-    protected Thread            process_supplier;
+    protected FutureTask<Object> process_supplier;
 
-    protected Thread            process_output_listener;
-    protected Thread            process_error_listener;
-    protected long              output_listener_count;
-    protected long              error_listener_count;
+    protected FutureTask<Object> process_output_listener;
+    protected FutureTask<Object> process_error_listener;
+    protected volatile long     output_listener_count;
+    protected volatile long     error_listener_count;
 
     protected InputStream       process_stdout;
     protected InputStream       process_stderr;
     protected OutputStream      process_stdin;
 
     protected InputStream       process_input;
+    protected java.io.File      process_input_file;
     protected PrintWriter       process_stdin_writer;
 
     protected int               exit_value;
@@ -67,7 +177,8 @@ public class SystemProcess implements ManagedResource {
     protected PipedInputStream  output_piped_input_stream;
     protected InputStreamReader output_piped_reader;
     protected OutputStream      process_output_stdout;
-    protected volatile StringBuilder     collected_output;
+    protected volatile ProcessOutputCollector collected_output;
+    protected volatile ProcessByteCollector   collected_output_bytes;
     protected TeeInputStream    output_tee_input_stream;
     protected InputStreamReader output_input_stream_reader;
 
@@ -75,7 +186,8 @@ public class SystemProcess implements ManagedResource {
     protected PipedInputStream  error_piped_input_stream;
     protected InputStreamReader error_piped_reader;
     protected OutputStream      process_error_stderr;
-    protected volatile StringBuilder     collected_error;
+    protected volatile ProcessOutputCollector collected_error;
+    protected volatile ProcessByteCollector   collected_error_bytes;
     protected TeeInputStream    error_tee_input_stream;
     protected InputStreamReader error_input_stream_reader;
 
@@ -104,15 +216,36 @@ public class SystemProcess implements ManagedResource {
     }
 
     public String getProcessOutputAsString(CallContext context, boolean clear) {
-        if (collected_output != null) {
-            synchronized (collected_output) {
-                String result = collected_output.toString();
-                if (clear) { collected_output.setLength(0); }
-                return result;
-            }
-        } else {
-            return null;
+        ProcessByteCollector byte_collector = this.collected_output_bytes;
+        if (byte_collector != null) {
+            return clear ? byte_collector.takeString(context, Charset.defaultCharset()) : byte_collector.getString(context, Charset.defaultCharset());
         }
+        ProcessOutputCollector collector = this.collected_output;
+        return collector == null ? null : collector.getContent(context, clear);
+    }
+
+    /**
+       Only available if bytes are captured, see setCaptureBytes.
+     */
+    public String getProcessOutputAsString(CallContext context, Charset charset) {
+        ProcessByteCollector byte_collector = this.collected_output_bytes;
+        return byte_collector == null ? null : byte_collector.getString(context, charset);
+    }
+
+    /**
+       Only available if bytes are captured, see setCaptureBytes.
+     */
+    public byte[] getProcessOutputAsBytes(CallContext context) {
+        ProcessByteCollector byte_collector = this.collected_output_bytes;
+        return byte_collector == null ? null : byte_collector.getBytes(context);
+    }
+
+    /**
+       The collector of stdout, if collected, for incremental consumption
+       of the output while the process is running.
+     */
+    public ProcessOutputCollector getProcessOutputCollector(CallContext context) {
+        return this.collected_output;
     }
 
     public PipedInputStream getProcessErrorAsStream(CallContext context) {
@@ -127,19 +260,30 @@ public class SystemProcess implements ManagedResource {
     }
 
     public String getProcessErrorAsString(CallContext context) {
-        return this.getProcessOutputAsString(context, false);
+        return this.getProcessErrorAsString(context, false);
     }
 
     public String getProcessErrorAsString(CallContext context, boolean clear) {
-        if (collected_error != null) {
-            synchronized (collected_error) {
-                String result = collected_error.toString();
-                if (clear) { collected_error.setLength(0); }
-                return result;
-            }
-        } else {
-            return null;
+        ProcessByteCollector byte_collector = this.collected_error_bytes;
+        if (byte_collector != null) {
+            return clear ? byte_collector.takeString(context, Charset.defaultCharset()) : byte_collector.getString(context, Charset.defaultCharset());
         }
+        ProcessOutputCollector collector = this.collected_error;
+        return collector == null ? null : collector.getContent(context, clear);
+    }
+
+    public String getProcessErrorAsString(CallContext context, Charset charset) {
+        ProcessByteCollector byte_collector = this.collected_error_bytes;
+        return byte_collector == null ? null : byte_collector.getString(context, charset);
+    }
+
+    public byte[] getProcessErrorAsBytes(CallContext context) {
+        ProcessByteCollector byte_collector = this.collected_error_bytes;
+        return byte_collector == null ? null : byte_collector.getBytes(context);
+    }
+
+    public ProcessOutputCollector getProcessErrorCollector(CallContext context) {
+        return this.collected_error;
     }
 
     public OutputStream getProcessInputAsStream(CallContext context) {
@@ -153,6 +297,54 @@ public class SystemProcess implements ManagedResource {
         return process_stdin_writer;
     }
 
+    /*
+        Collection of stdout/stderr into strings, see ProcessOutputCollector;
+        configured via 'CollectMode' (Unbounded, HeadTail or Spill) and
+        'CollectLimit' (characters), or per process via setCollectLimit
+    */
+    protected ProcessOutputCollector.Mode collect_mode;
+    protected long                        collect_limit;
+
+    /**
+       To be called before start.
+     */
+    public void setCollectLimit(CallContext context, ProcessOutputCollector.Mode collect_mode, long collect_limit) {
+        this.collect_mode  = collect_mode;
+        this.collect_limit = collect_limit;
+    }
+
+    /*
+        If set (per process via setCaptureBytes, or globally via
+        'CaptureBytes'), listeners pass stdout/stderr on as raw bytes and
+        collect them undecoded, see ProcessByteCollector; otherwise they
+        are decoded with the platform charset
+    */
+    protected Boolean capture_bytes_setting;
+    protected boolean capture_bytes;
+
+    /**
+       To be called before start.
+     */
+    public void setCaptureBytes(CallContext context, boolean capture_bytes) {
+        this.capture_bytes_setting = capture_bytes;
+    }
+
+    public ProcessByteCollector getProcessOutputByteCollector(CallContext context) {
+        return this.collected_output_bytes;
+    }
+
+    public ProcessByteCollector getProcessErrorByteCollector(CallContext context) {
+        return this.collected_error_bytes;
+    }
+
+    protected ProcessOutputCollector createCollector(CallContext context) {
+        if (this.collect_mode == null) {
+            this.collect_mode  = ProcessOutputCollector.Mode.valueOf(config.get(context, "CollectMode", "Unbounded"));
+            this.collect_limit = config.get(context, "CollectLimit", 1048576);
+        }
+        return new ProcessOutputCollector(context, this.collect_mode, this.collect_limit);
+    }
+
     public void configure(CallContext context,
                           boolean write_stdout_to_stdout,
                           boolean write_stdout_to_piped_stream, 
@@ -166,19 +358,29 @@ public class SystemProcess implements ManagedResource {
         this. error_tee_input_stream.setStreamState(1, write_stderr_to_stderr);
 
         if (write_stdout_to_string_builder) {
-            if (this.collected_output == null) {
-                this.collected_output = new StringBuilder();
+            if (this.capture_bytes) {
+                if (this.collected_output_bytes == null) {
+                    this.collected_output_bytes = new ProcessByteCollector(context);
+                }
+            } else if (this.collected_output == null) {
+                this.collected_output = this.createCollector(context);
             }
         } else {
             this.collected_output = null;
+            this.collected_output_bytes = null;
         }
 
         if (write_stderr_to_string_builder) {
-            if (this.collected_error == null) {
-                this.collected_error = new StringBuilder();
+            if (this.capture_bytes) {
+                if (this.collected_error_bytes == null) {
+                    this.collected_error_bytes = new ProcessByteCollector(context);
+                }
+            } else if (this.collected_error == null) {
+                this.collected_error = this.createCollector(context);
             }
         } else {
             this.collected_error = null;
+            this.collected_error_bytes = null;
         }
     } 
 
@@ -206,6 +408,234 @@ public class SystemProcess implements ManagedResource {
         this.debug = debug;
     }
 
+    /**
+       If set, the process reads its stdin directly from the given file
+       (redirected by the OS, no data is copied through this JVM); any
+       process input stream passed to start is ignored then.
+     */
+    public void setProcessInputFile(CallContext context, java.io.File process_input_file) {
+        this.process_input_file = process_input_file;
+    }
+
+    /*
+        Limits, per process via setTimeout and setResourceLimits, or
+        configured via
+
+          Timeout                 wall clock time in ms after which wait,
+                                  start with wait and executeAsync
+                                  terminate the process (0: none)
+          KillGracePeriod         ms between graceful and forceful
+                                  termination of the process tree
+          ResourceLimitCPU        CPU seconds (0: none)
+          ResourceLimitMemoryMB   address space in MB (0: none)
+
+        Resource limits are applied by running the command via 'prlimit'
+        and are only available on Linux.
+    */
+    protected long    timeout_ms = -1;
+    protected int     limit_cpu_seconds = -1;
+    protected int     limit_memory_mb = -1;
+    protected volatile boolean timed_out;
+
+    public void setTimeout(CallContext context, long timeout_ms) {
+        this.timeout_ms = timeout_ms;
+    }
+
+    public long getTimeout(CallContext context) {
+        if (this.timeout_ms == -1) {
+            this.timeout_ms = config.get(context, "Timeout", 0);
+        }
+        return this.timeout_ms;
+    }
+
+    public boolean isTimedOut(CallContext context) {
+        return this.timed_out;
+    }
+
+    /**
+       To be called before start; 0 means no limit.
+     */
+    public void setResourceLimits(CallContext context, int limit_cpu_seconds, int limit_memory_mb) {
+        this.limit_cpu_seconds = limit_cpu_seconds;
+        this.limit_memory_mb   = limit_memory_mb;
+    }
+
+    protected String[] applyResourceLimits(CallContext context, String[] arguments) {
+        if (this.limit_cpu_seconds == -1) { this.limit_cpu_seconds = config.get(context, "ResourceLimitCPU", 0); }
+        if (this.limit_memory_mb   == -1) { this.limit_memory_mb   = config.get(context, "ResourceLimitMemoryMB", 0); }
+        if (this.limit_cpu_seconds <= 0 && this.limit_memory_mb <= 0) { return arguments; }
+        if (System.getProperty("os.name", "").startsWith("Linux") == false) {
+            if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "SystemProcess, resource limits are only supported on Linux, ignored for '%(command)'", "command", StringUtilities.join(context, arguments, " ", true)); }
+            return arguments;
+        }
+        java.util.List<String> limited = new java.util.ArrayList<String>(arguments.length + 4);
+        limited.add("prlimit");
+        if (this.limit_cpu_seconds > 0) { limited.add("--cpu=" + this.limit_cpu_seconds); }
+        if (this.limit_memory_mb   > 0) { limited.add("--as=" + (this.limit_memory_mb * 1024L * 1024L)); }
+        limited.add("--");
+        for (String argument : arguments) { limited.add(argument); }
+        return limited.toArray(new String[limited.size()]);
+    }
+
+    protected void handleTimeout(CallContext context, long timeout_ms) {
+        this.timed_out = true;
+        SystemProcessMetrics current_metrics = getMetrics(context);
+        if (current_metrics != null) { current_metrics.notifyTimedOut(context, this); }
+        if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "SystemProcess, '%(command)' exceeded timeout of %(timeout) ms, terminating", "command", (command != null ? command : StringUtilities.join(context, command_array, " ", true)), "timeout", t.s(timeout_ms)); }
+        this.terminate(context);
+    }
+
+    /**
+       Terminates the process and all its descendants, gracefully first,
+       and forcefully those still alive after 'KillGracePeriod' ms.
+     */
+    public void terminate(CallContext context) {
+        if (this.process == null) { return; }
+        this.explicitly_stopped = true;
+
+        // collect descendants before the parent dies, afterwards they
+        // would be reparented
+        java.util.List<ProcessHandle> tree = new java.util.ArrayList<ProcessHandle>();
+        this.process.descendants().forEach(tree::add);
+        tree.add(this.process.toHandle());
+
+        for (ProcessHandle handle : tree) {
+            handle.destroy();
+        }
+        long deadline = System.currentTimeMillis() + config.get(context, "KillGracePeriod", 5000);
+        for (ProcessHandle handle : tree) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) { break; }
+            try {
+                handle.onExit().get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException te) {
+                break;
+            } catch (InterruptedException ie) {
+                break;
+            } catch (ExecutionException ee) {
+            }
+        }
+        boolean killed = false;
+        for (ProcessHandle handle : tree) {
+            if (handle.isAlive()) {
+                handle.destroyForcibly();
+                killed = true;
+            }
+        }
+        if (killed) {
+            SystemProcessMetrics current_metrics = getMetrics(context);
+            if (current_metrics != null) { current_metrics.notifyKilled(context, this); }
+            if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "SystemProcess, killed '%(command)' forcefully", "command", (command != null ? command : StringUtilities.join(context, command_array, " ", true))); }
+        }
+    }
+
+    /*
+        Metrics of all executions, configured via 'Metrics':
+
+          Statistics  SystemProcessStatistics, also available via JMX
+                      (default)
+          None        no metrics
+
+        or set explicitly via setMetrics.
+    */
+    static protected SystemProcessMetrics metrics;
+    static protected boolean              metrics_initialised;
+
+    static public synchronized SystemProcessMetrics getMetrics(CallContext context) {
+        if (metrics_initialised == false) {
+            metrics_initialised = true;
+            if (config.get(context, "Metrics", "Statistics").equals("Statistics")) {
+                metrics = SystemProcessStatistics.getSingleton(context);
+            }
+        }
+        return metrics;
+    }
+
+    static public synchronized void setMetrics(CallContext context, SystemProcessMetrics new_metrics) {
+        metrics = new_metrics;
+        metrics_initialised = true;
+    }
+
+    protected volatile long started_nanos;
+    protected volatile long exit_nanos;
+    protected volatile long input_count;
+    protected boolean       finish_reported;
+
+    /**
+       Name of the executable, without path.
+     */
+    public String getCommandName(CallContext context) {
+        String name;
+        if (this.command != null) {
+            java.util.StringTokenizer tokenizer = new java.util.StringTokenizer(this.command);
+            name = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : "";
+        } else {
+            name = (this.command_array == null || this.command_array.length == 0) ? "" : this.command_array[0];
+        }
+        return name.substring(name.lastIndexOf(java.io.File.separatorChar) + 1);
+    }
+
+    protected void notifyExited(CallContext context) {
+        if (this.exit_nanos == 0) {
+            this.exit_nanos = System.nanoTime();
+        }
+        SystemProcessMetrics current_metrics = getMetrics(context);
+        if (current_metrics != null) {
+            current_metrics.notifyExited(context, this, this.exit_nanos - this.started_nanos);
+        }
+    }
+
+    protected void notifyFinished(CallContext context) {
+        synchronized (this) {
+            if (this.finish_reported) { return; }
+            this.finish_reported = true;
+        }
+        SystemProcessMetrics current_metrics = getMetrics(context);
+        if (current_metrics != null) {
+            long exit_time = this.exit_nanos;
+            long bytes_in  = this.input_count;
+            if (this.process_input_file != null) {
+                bytes_in = this.process_input_file.length();
+            }
+            current_metrics.notifyFinished(context, this, this.exit_value,
+                                           exit_time == 0 ? 0 : System.nanoTime() - exit_time,
+                                           bytes_in,
+                                           this.output_tee_input_stream == null ? 0 : this.output_tee_input_stream.getCount(),
+                                           this.error_tee_input_stream  == null ? 0 : this.error_tee_input_stream.getCount());
+        }
+    }
+
+    protected Process attached_process;
+
+    /**
+       Lets the next start use an already running process instead of
+       creating one, e.g. a stage of a SystemProcessPipeline.
+     */
+    protected void attachProcess(CallContext context, Process attached_process) {
+        this.attached_process = attached_process;
+    }
+
+    protected ProcessBuilder createProcessBuilder(CallContext context) {
+        String[] arguments = this.command_array;
+        if (this.command != null) {
+            // same tokenization as Runtime.exec(String)
+            java.util.StringTokenizer tokenizer = new java.util.StringTokenizer(this.command);
+            arguments = new String[tokenizer.countTokens()];
+            for (int i=0; tokenizer.hasMoreTokens(); i++) {
+                arguments[i] = tokenizer.nextToken();
+            }
+        }
+        arguments = this.applyResourceLimits(context, arguments);
+        ProcessBuilder process_builder = new ProcessBuilder(arguments);
+        if (this.working_folder != null) {
+            process_builder.directory(new java.io.File(this.working_folder));
+        }
+        if (this.process_input_file != null) {
+            process_builder.redirectInput(this.process_input_file);
+        }
+        return process_builder;
+    }
+
     public PipedInputStream start(CallContext context) {
         return start(context, null);
     }
@@ -231,15 +661,19 @@ public class SystemProcess implements ManagedResource {
         this.context = call_context;
         this.explicitly_stopped = false;
 
-        this.process_input = process_input_arg;
+        this.process_input = (this.process_input_file != null ? null : process_input_arg);
 
         if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, starting process '%(command)'...", "command", (command != null ? command : StringUtilities.join(context, command_array, " ", true))); }
 
+        long spawn_nanos = 0;
         try {
-            if (command != null) {
-                this.process = java.lang.Runtime.getRuntime().exec(command, null, working_folder == null ? null : new java.io.File(working_folder));
+            if (this.attached_process != null) {
+                this.process = this.attached_process;
+                this.attached_process = null;
             } else {
-                this.process = java.lang.Runtime.getRuntime().exec(command_array, null, working_folder == null ? null : new java.io.File(working_folder));
+                spawn_nanos = System.nanoTime();
+                this.process = this.createProcessBuilder(context).start();
+                spawn_nanos = System.nanoTime() - spawn_nanos;
             }
         } catch (java.io.IOException ioe) {
             CustomaryContext.create((Context)context).throwConfigurationError(context, ioe, "External process '%(command)' could not be started", "command", (command != null ? command : StringUtilities.join(context, command_array, " ", true)));
@@ -247,12 +681,24 @@ public class SystemProcess implements ManagedResource {
         }
 
         this.process_active = true;
+
+        this.started_nanos   = System.nanoTime();
+        this.exit_nanos      = 0;
+        this.input_count     = 0;
+        this.finish_reported = false;
+        SystemProcessMetrics current_metrics = getMetrics(context);
+        if (current_metrics != null) {
+            current_metrics.notifyStarted(context, this, spawn_nanos);
+            this.process.onExit().thenRun(() -> this.notifyExited(context));
+        }
     
         this.process_stdout = this.process.getInputStream();
         this.process_stderr = this.process.getErrorStream();
         this.process_stdin  = this.process.getOutputStream();
 
         if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, creating output streams..."); }
+
+        this.capture_bytes = this.capture_bytes_setting != null ? this.capture_bytes_setting : config.get(context, "CaptureBytes", false);
             
         if (write_stdout_to_stdout) {
             SystemContext sc = SystemContext.getOrCreate((Context) context);
@@ -260,20 +706,22 @@ public class SystemProcess implements ManagedResource {
         }
 
         if (write_stdout_to_piped_stream) {
-            try {
-                this.output_piped_input_stream = new PipedInputStream();
-                this.process_output_pipe = new PipedOutputStream(this.output_piped_input_stream);
-            } catch (java.io.IOException ioe) {
-                CustomaryContext.create((Context)context).throwAssertionProvedFalse(context, ioe, "Piped Output Stream could not be created");
-                throw (ExceptionAssertionProvedFalse) null; // compiler insists
-            }
+            RingBufferPipe pipe = new RingBufferPipe(config.get(context, "PipeCapacity", 65536));
+            this.output_piped_input_stream = pipe.getInputStream();
+            this.process_output_pipe = pipe.getOutputStream();
         }
 
         this.output_tee_input_stream = new TeeInputStream(this.process_stdout, this.process_output_pipe, this.process_output_stdout);
-        this.output_input_stream_reader = new InputStreamReader(this.output_tee_input_stream);
+        if (this.capture_bytes == false) {
+            this.output_input_stream_reader = new InputStreamReader(this.output_tee_input_stream);
+        }
         
         if (write_stdout_to_string_builder) {
-            this.collected_output = new StringBuilder();
+            if (this.capture_bytes) {
+                this.collected_output_bytes = new ProcessByteCollector(context);
+            } else {
+                this.collected_output = this.createCollector(context);
+            }
         }
 
         if (write_stderr_to_stderr) {
@@ -282,20 +730,22 @@ public class SystemProcess implements ManagedResource {
         }
 
         if (write_stderr_to_piped_stream) {
-            try {
-                this.error_piped_input_stream = new PipedInputStream();
-                this.process_error_pipe = new PipedOutputStream(this.error_piped_input_stream);
-            } catch (java.io.IOException ioe) {
-                CustomaryContext.create((Context)context).throwAssertionProvedFalse(context, ioe, "Piped Output Stream could not be created");
-                throw (ExceptionAssertionProvedFalse) null; // compiler insists
-            }
+            RingBufferPipe pipe = new RingBufferPipe(config.get(context, "PipeCapacity", 65536));
+            this.error_piped_input_stream = pipe.getInputStream();
+            this.process_error_pipe = pipe.getOutputStream();
         }
 
         this.error_tee_input_stream = new TeeInputStream(this.process_stderr, this.process_error_pipe, this.process_error_stderr);
-        this.error_input_stream_reader = new InputStreamReader(this.error_tee_input_stream);
+        if (this.capture_bytes == false) {
+            this.error_input_stream_reader = new InputStreamReader(this.error_tee_input_stream);
+        }
         
         if (write_stderr_to_string_builder) {
-            this.collected_error = new StringBuilder();
+            if (this.capture_bytes) {
+                this.collected_error_bytes = new ProcessByteCollector(context);
+            } else {
+                this.collected_error = this.createCollector(context);
+            }
         }
 
         this.startListeners(context);
@@ -303,15 +753,18 @@ public class SystemProcess implements ManagedResource {
         if (process_input != null) {
             if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, creating supplier thread..."); }
 
-            this.process_supplier = new Thread() {
+            Runnable supplier = new Runnable() {
                     public void run () {
                         try {
                             feeder_active = true;
-                            int c;
-                            while ((c = process_input.read()) != -1) {
-                                if (debug) { System.err.println("[I|" + ((char) c) + "]"); }
-                                process_stdin.write(c);
+                            byte[] buffer = new byte[config.get(context, "FeederBufferSize", 65536)];
+                            int count;
+                            while ((count = process_input.read(buffer)) != -1) {
+                                if (debug) { System.err.println("[I|" + new String(buffer, 0, count) + "]"); }
+                                process_stdin.write(buffer, 0, count);
+                                input_count += count;
                             }
+                            process_stdin.flush();
                         } catch (java.io.IOException ioe) {
                             NotificationContext.sendError(context, "system process supplier thread terminated unsuccessfully: %(reason)", "reason", ioe);
                         } finally {
@@ -334,15 +787,11 @@ public class SystemProcess implements ManagedResource {
         
             if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, starting supplier thread..."); }
         
-            this.process_supplier.start();
+            this.process_supplier = this.startPump(context, "SystemProcess-supplier", supplier);
         }
 
         if (wait) {
-            try {
-                this.process.waitFor();
-            } catch (java.lang.InterruptedException ie) {
-                NotificationContext.sendError(context, "system process thread terminated unsuccessfully: %(reason)", "reason", ie);
-            }
+            this.waitForExit(context, this.getTimeout(context));
         }
     }
 
@@ -357,46 +806,67 @@ public class SystemProcess implements ManagedResource {
 
     public void release(CallContext context) {
         if (this.process_output_listener != null) {
-            this.process_output_listener.interrupt();
+            this.process_output_listener.cancel(true);
         }
         if (this.process_error_listener != null) {
-            this.process_error_listener.interrupt();
+            this.process_error_listener.cancel(true);
         }
         this.stop(context);
     }
 
     public void wait(CallContext context) {
-        if (this.process != null) {
-            try {
-                this.process.waitFor();
-            } catch (java.lang.InterruptedException ie) {
-                NotificationContext.sendError(context, "system process thread terminated unsuccessfully: %(reason)", "reason", ie);
-            }
-        }
+        this.wait(context, this.getTimeout(context));
+    }
+
+    /**
+       Waits at most timeout_ms (0: no timeout) for the process, then
+       terminates it; returns false if the timeout was exceeded.
+     */
+    public boolean wait(CallContext context, long timeout_ms) {
+        boolean in_time = this.waitForExit(context, timeout_ms);
+        // let listeners read up to end of stream before isFinished closes
+        // the streams; bounded, since a detached child process may still
+        // hold them open
+        this.waitForDrained(context, config.get(context, "DrainTimeout", 10000));
         if (this.isFinished(context) == false) {
             NotificationContext.sendError(context, "system process thread invalid state: no exit value available after waitFor terminated");
         }
         if (this.process_supplier != null) {
-            try {
-                this.process_supplier.join(/* millis */);
-            } catch (java.lang.InterruptedException ie) {
-                NotificationContext.sendError(context, "system process supplier thread terminated unsuccessfully: %(reason)", "reason", ie);
-            }
+            this.joinPump(context, this.process_supplier, "supplier thread");
         }
         if (this.process_output_listener != null) {
-            try {
-                this.process_output_listener.join(/* millis */);
-            } catch (java.lang.InterruptedException ie) {
-                NotificationContext.sendError(context, "system process output listener thread terminated unsuccessfully: %(reason)", "reason", ie);
-            }
+            this.joinPump(context, this.process_output_listener, "output listener thread");
         }
         if (this.process_error_listener != null) {
+            this.joinPump(context, this.process_error_listener, "error listener thread");
+        }
+        this.notifyFinished(context);
+        return in_time;
+    }
+
+    /**
+       Waits at most timeout_ms (0: no timeout) for the process to exit,
+       then terminates it; returns false if the timeout was exceeded.
+     */
+    protected boolean waitForExit(CallContext context, long timeout_ms) {
+        boolean in_time = true;
+        if (this.process != null) {
             try {
-                this.process_error_listener.join(/* millis */);
+                if (timeout_ms > 0) {
+                    if (this.process.waitFor(timeout_ms, TimeUnit.MILLISECONDS) == false) {
+                        in_time = false;
+                        this.handleTimeout(context, timeout_ms);
+                        this.process.waitFor();
+                    }
+                } else {
+                    this.process.waitFor();
+                }
+                if (this.exit_nanos == 0) { this.exit_nanos = System.nanoTime(); }
             } catch (java.lang.InterruptedException ie) {
-                NotificationContext.sendError(context, "system process error listener thread terminated unsuccessfully: %(reason)", "reason", ie);
+                NotificationContext.sendError(context, "system process thread terminated unsuccessfully: %(reason)", "reason", ie);
             }
         }
+        return in_time;
     }
 
     public void closeOutputAndErrorIO(CallContext context) {
@@ -465,27 +935,110 @@ public class SystemProcess implements ManagedResource {
         }
     }
 
+    protected CompletableFuture<Void> output_drained;
+    protected CompletableFuture<Void> error_drained;
+    protected CompletableFuture<SystemProcessResult> completion;
+
+    /**
+       Completes when the process has exited and both listeners have
+       read their streams up to the end, or 'DrainTimeout' ms after the
+       exit at the latest, as in wait().
+     */
+    public synchronized CompletableFuture<SystemProcessResult> getCompletion(final CallContext context) {
+        if (this.process == null || this.output_drained == null) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "System process not started yet");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        if (this.completion == null) {
+            final long drain_timeout = config.get(context, "DrainTimeout", 10000);
+            // not in the process reaper thread, which handles the exits of
+            // all processes
+            final Executor executor = runnable -> executePump(context, "SystemProcess-completion", runnable);
+            this.completion = this.process.onExit().thenComposeAsync(process -> {
+                    if (this.exit_nanos == 0) { this.exit_nanos = System.nanoTime(); }
+                    // a detached child process may still hold the streams open
+                    CompletableFuture<Void> drained = CompletableFuture.allOf(this.output_drained, this.error_drained);
+                    return drain_timeout > 0 ? drained.completeOnTimeout(null, drain_timeout, TimeUnit.MILLISECONDS) : drained;
+                }, executor).thenApplyAsync(drained -> {
+                    if (this.output_drained.isDone() == false || this.error_drained.isDone() == false) {
+                        if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "system process listeners did not reach end of stream within %(timeout) ms", "timeout", t.s(drain_timeout)); }
+                    }
+                    // closes the process streams
+                    this.isFinished(context);
+                    this.notifyFinished(context);
+                    return new SystemProcessResult(context, this, this.exit_value, this.getProcessOutputAsString(context), this.getProcessErrorAsString(context), this.exit_nanos - this.started_nanos, System.nanoTime() - this.started_nanos, this.timed_out);
+                }, executor);
+        }
+        return this.completion;
+    }
+
+    public CompletableFuture<SystemProcess> onExit(CallContext context) {
+        return this.getCompletion(context).thenApply(result -> this);
+    }
+
+    /**
+       Returns true if both listeners reached end of stream within
+       timeout_ms (0: no timeout).
+     */
+    public boolean waitForDrained(CallContext context, long timeout_ms) {
+        if (this.output_drained == null) { return true; }
+        try {
+            CompletableFuture<Void> drained = CompletableFuture.allOf(this.output_drained, this.error_drained);
+            if (timeout_ms > 0) {
+                drained.get(timeout_ms, TimeUnit.MILLISECONDS);
+            } else {
+                drained.get();
+            }
+            return true;
+        } catch (TimeoutException te) {
+            if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "system process listeners did not reach end of stream within %(timeout) ms", "timeout", t.s(timeout_ms)); }
+            return false;
+        } catch (InterruptedException ie) {
+            NotificationContext.sendError(context, "system process, waiting for listeners interrupted: %(reason)", "reason", ie);
+            return false;
+        } catch (ExecutionException ee) {
+            return true;
+        }
+    }
+
     public void startListeners(CallContext call_context) {
         if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, creating listener threads..."); }
 
+        this.output_drained = new CompletableFuture<Void>();
+        this.error_drained  = new CompletableFuture<Void>();
+
         this.output_listener_count = 0;
         this.error_listener_count = 0;
 
-        this.process_output_listener = new Thread() {
+        Runnable output_listener = new Runnable() {
                 public void run () {
                     try {
-                        char[] buf = new char[1024];
-                        int count;
-                        while((count = output_input_stream_reader.read(buf)) != -1) {
-                            if (debug) { System.err.println("[O|" + new String(buf, 0, count) + "]"); }
-
-                            output_listener_count += count;
-                            if (collected_output != null) {
-                                synchronized (collected_output) {
-                                    collected_output.append(buf, 0, count);
+                        if (output_input_stream_reader == null) {
+                            byte[] buf = new byte[8192];
+                            int count;
+                            while((count = output_tee_input_stream.read(buf)) != -1) {
+                                if (debug) { System.err.println("[O|" + new String(buf, 0, count) + "]"); }
+
+                                output_listener_count += count;
+                                ProcessByteCollector collector = collected_output_bytes;
+                                if (collector != null) {
+                                    collector.append(context, buf, 0, count);
+                                }
+                                output_tee_input_stream.flushOutputStreams();
+                            }
+                        } else {
+                            char[] buf = new char[8192];
+                            int count;
+                            while((count = output_input_stream_reader.read(buf)) != -1) {
+                                if (debug) { System.err.println("[O|" + new String(buf, 0, count) + "]"); }
+
+                                output_listener_count += count;
+                                ProcessOutputCollector collector = collected_output;
+                                if (collector != null) {
+                                    collector.append(context, buf, 0, count);
                                 }
+                                output_tee_input_stream.flushOutputStreams();
                             }
-                            output_tee_input_stream.flushOutputStreams();
                         }
                         try {
                             if (output_input_stream_reader != null) {
@@ -501,13 +1054,6 @@ public class SystemProcess implements ManagedResource {
                         } catch (java.io.IOException ioe) {
                             NotificationContext.sendError(context, "system process stdout listener thread could not close tis: %(reason)", "reason", ioe);
                         }
-                        try {
-                            if (process_output_pipe != null) {
-                                process_output_pipe.close();
-                            }
-                        } catch (java.io.IOException ioe) {
-                            NotificationContext.sendError(context, "system process stdout listener thread could not close process output pipe: %(reason)", "reason", ioe);
-                        }
                         try {
                             if (process_output_stdout != null) {
                                 process_output_stdout.flush();
@@ -519,26 +1065,49 @@ public class SystemProcess implements ManagedResource {
                         if (explicitly_stopped == false) {
                             NotificationContext.sendError(context, "system process stdout listener thread terminated unsuccessfully: %(reason)", "reason", ioe);
                         }
+                    } finally {
+                        // also if reading failed, otherwise readers of the pipe wait forever
+                        try {
+                            if (process_output_pipe != null) {
+                                process_output_pipe.close();
+                            }
+                        } catch (java.io.IOException ioe) {
+                            NotificationContext.sendError(context, "system process stdout listener thread could not close process output pipe: %(reason)", "reason", ioe);
+                        }
                     }
                     if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, output listener thread terminated."); }
                 }
             };
 
-        this.process_error_listener = new Thread() {
+        Runnable error_listener = new Runnable() {
                 public void run () {
                     try {
-                        char[] buf = new char[1024];
-                        int count;
-                        while((count = error_input_stream_reader.read(buf)) != -1) {
-                            if (debug) { System.err.println("[E|" + new String(buf, 0, count) + "]"); }
-
-                            error_listener_count += count;
-                            if (collected_error != null) {
-                                synchronized (collected_error) {
-                                    collected_error.append(buf, 0, count);
+                        if (error_input_stream_reader == null) {
+                            byte[] buf = new byte[8192];
+                            int count;
+                            while((count = error_tee_input_stream.read(buf)) != -1) {
+                                if (debug) { System.err.println("[E|" + new String(buf, 0, count) + "]"); }
+
+                                error_listener_count += count;
+                                ProcessByteCollector collector = collected_error_bytes;
+                                if (collector != null) {
+                                    collector.append(context, buf, 0, count);
+                                }
+                                error_tee_input_stream.flushOutputStreams();
+                            }
+                        } else {
+                            char[] buf = new char[8192];
+                            int count;
+                            while((count = error_input_stream_reader.read(buf)) != -1) {
+                                if (debug) { System.err.println("[E|" + new String(buf, 0, count) + "]"); }
+
+                                error_listener_count += count;
+                                ProcessOutputCollector collector = collected_error;
+                                if (collector != null) {
+                                    collector.append(context, buf, 0, count);
                                 }
+                                error_tee_input_stream.flushOutputStreams();
                             }
-                            error_tee_input_stream.flushOutputStreams();
                         }
                         try {
                             if (error_input_stream_reader != null) {
@@ -554,13 +1123,6 @@ public class SystemProcess implements ManagedResource {
                         } catch (java.io.IOException ioe) {
                             NotificationContext.sendError(context, "system process stderr listener thread could not close tis: %(reason)", "reason", ioe);
                         }
-                        try {
-                            if (process_error_pipe != null) {
-                                process_error_pipe.close();
-                            }
-                        } catch (java.io.IOException ioe) {
-                            NotificationContext.sendError(context, "system process stderr listener thread could not close process error pipe: %(reason)", "reason", ioe);
-                        }
                         try {
                             if (process_error_stderr != null) {
                                 process_error_stderr.flush();
@@ -572,6 +1134,15 @@ public class SystemProcess implements ManagedResource {
                         if (explicitly_stopped == false) {
                             NotificationContext.sendError(context, "system process stderr listener thread terminated unsuccessfully: %(reason)", "reason", ioe);
                         }
+                    } finally {
+                        // also if reading failed, otherwise readers of the pipe wait forever
+                        try {
+                            if (process_error_pipe != null) {
+                                process_error_pipe.close();
+                            }
+                        } catch (java.io.IOException ioe) {
+                            NotificationContext.sendError(context, "system process stderr listener thread could not close process error pipe: %(reason)", "reason", ioe);
+                        }
                     }
                     if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, error listener thread terminated."); }
                 }
@@ -579,8 +1150,8 @@ public class SystemProcess implements ManagedResource {
         
         if ((notification_level & Notifier.SELF_DIAGNOSTICS) != 0) { NotificationContext.sendTrace(context, Notifier.SELF_DIAGNOSTICS, "SystemProcess, starting listener threads..."); }
 
-        this.process_output_listener.start();
-        this.process_error_listener.start();
+        this.process_output_listener = this.startPump(context, "SystemProcess-output-listener", output_listener, this.output_drained);
+        this.process_error_listener  = this.startPump(context, "SystemProcess-error-listener", error_listener, this.error_drained);
     }
 
 // that simply does not work
@@ -589,24 +1160,36 @@ public class SystemProcess implements ManagedResource {
 //         this.process_error_listener.interrupt();
 //     }
 
+    /**
+       Waits until both listeners reached end of stream, or, while the
+       process is still running, until its output has been quiet for
+       'QuietPeriod' ms (default 250).
+     */
     public void waitForListeners(CallContext context) {
-        long olc;
-        long elc;
-        boolean busy;
-        do {
-            busy = false;
-            olc = output_listener_count;
-            elc = error_listener_count;
+        if (this.output_drained == null) { return; }
+        if (this.process != null && this.process.isAlive() == false) {
+            // process is gone, so listeners will see end of stream, unless
+            // a detached child process still holds the streams, as in wait()
+            this.waitForDrained(context, config.get(context, "DrainTimeout", 10000));
+            return;
+        }
+        long quiet_period = config.get(context, "QuietPeriod", 250);
+        CompletableFuture<Void> drained = CompletableFuture.allOf(this.output_drained, this.error_drained);
+        while (true) {
+            long olc = this.output_listener_count;
+            long elc = this.error_listener_count;
             try {
-                Thread.currentThread().sleep(50);
-            } catch (InterruptedException ie) { }
-            if (olc != output_listener_count || elc != error_listener_count) {
-                busy = true;
-                try {
-                    Thread.currentThread().sleep(250);
-                } catch (InterruptedException ie) { }
+                drained.get(quiet_period, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException te) {
+                if (olc == this.output_listener_count && elc == this.error_listener_count) { return; }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ee) {
+                return;
             }
-        } while(busy);
+        }
     }
 
     static public int execute(CallContext context, String command, String working_folder) {
@@ -640,6 +1223,151 @@ public class SystemProcess implements ManagedResource {
         return sp.getExitValue(context);
     }
 
+    /**
+       As execute, but terminates the process after timeout_ms (0: no
+       timeout).
+     */
+    static public int execute(CallContext context, InputStream process_input, String[] outerr, String working_folder, long timeout_ms, String... command_array) {
+        SystemProcess sp = new SystemProcess(context, command_array, working_folder);
+        sp.setTimeout(context, timeout_ms);
+        sp.start(context, process_input, outerr == null ? true : false, false, outerr != null ? true : false, outerr == null ? true : false, false, outerr != null ? true : false, false);
+        sp.wait(context);
+        if (outerr != null) {
+            outerr[0] = sp.getProcessOutputAsString(context, true);
+            outerr[1] = sp.getProcessErrorAsString(context, true);
+        }
+        return sp.getExitValue(context);
+    }
+
+    /*
+        Asynchronous executions are started only while less than
+        'AsyncConcurrency' (default: twice the number of processors) of
+        them are running, further ones are queued and started as soon as
+        running ones complete; callers are never blocked. Launches run in
+        the pump executor.
+    */
+    static protected ConcurrentLinkedQueue<Runnable> async_queue = new ConcurrentLinkedQueue<Runnable>();
+    static protected AtomicInteger                   async_running = new AtomicInteger();
+    static protected volatile int                    async_concurrency = -1;
+    static protected ScheduledExecutorService        timeout_scheduler;
+
+    static public void setAsyncConcurrency(CallContext context, int concurrency) {
+        async_concurrency = concurrency;
+        startQueuedAsync(context);
+    }
+
+    static protected int getAsyncConcurrency(CallContext context) {
+        if (async_concurrency == -1) {
+            async_concurrency = config.get(context, "AsyncConcurrency", 2 * Runtime.getRuntime().availableProcessors());
+        }
+        return async_concurrency;
+    }
+
+    static protected synchronized ScheduledExecutorService getTimeoutScheduler(CallContext context) {
+        if (timeout_scheduler == null) {
+            ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SystemProcess-timeout");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            stpe.setRemoveOnCancelPolicy(true);
+            timeout_scheduler = stpe;
+        }
+        return timeout_scheduler;
+    }
+
+    static protected void startQueuedAsync(CallContext context) {
+        int limit = getAsyncConcurrency(context);
+        while (true) {
+            int running = async_running.get();
+            if (running >= limit) { return; }
+            if (async_running.compareAndSet(running, running + 1) == false) { continue; }
+            Runnable launch = async_queue.poll();
+            if (launch == null) {
+                async_running.decrementAndGet();
+                // something may have been queued while the slot was held
+                if (async_queue.isEmpty()) { return; }
+                continue;
+            }
+            // not inline: called from completion callbacks, which run in
+            // the process reaper or the timeout thread
+            try {
+                executePump(context, "SystemProcess-launcher", launch);
+            } catch (RejectedExecutionException ree) {
+                launch.run();
+            }
+        }
+    }
+
+    static protected void completeAsync(CallContext context) {
+        async_running.decrementAndGet();
+        startQueuedAsync(context);
+    }
+
+    static public CompletableFuture<SystemProcessResult> executeAsync(CallContext context, InputStream process_input, String working_folder, String... command_array) {
+        return executeAsync(context, process_input, working_folder, -1, command_array);
+    }
+
+    /**
+       Starts the process as soon as the concurrency limit permits and
+       completes with its result, stdout and stderr collected; timeout_ms
+       0 means no timeout, -1 the configured one.
+     */
+    static public CompletableFuture<SystemProcessResult> executeAsync(final CallContext context, final InputStream process_input, final String working_folder, final long timeout_ms, final String... command_array) {
+        final CompletableFuture<SystemProcessResult> result = new CompletableFuture<SystemProcessResult>();
+        async_queue.add(new Runnable() {
+                public void run() {
+                    try {
+                        final SystemProcess sp = new SystemProcess(context, command_array, working_folder);
+                        if (timeout_ms != -1) {
+                            sp.setTimeout(context, timeout_ms);
+                        }
+                        sp.start(context, process_input, false, false, true, false, false, true, false);
+                        final long timeout = sp.getTimeout(context);
+                        final ScheduledFuture<?> timer = timeout <= 0 ? null : getTimeoutScheduler(context).schedule(new Runnable() {
+                                public void run() {
+                                    // termination may take the grace period, keep the
+                                    // scheduler free
+                                    sp.startPump(context, "SystemProcess-terminator", new Runnable() {
+                                            public void run() {
+                                                if (sp.process.isAlive()) { sp.handleTimeout(context, timeout); }
+                                            }
+                                        });
+                                }
+                            }, timeout, TimeUnit.MILLISECONDS);
+                        sp.getCompletion(context).whenComplete((process_result, throwable) -> {
+                                if (timer != null) { timer.cancel(false); }
+                                completeAsync(context);
+                                if (throwable != null) {
+                                    result.completeExceptionally(throwable);
+                                } else {
+                                    result.complete(process_result);
+                                }
+                            });
+                    } catch (Throwable throwable) {
+                        completeAsync(context);
+                        result.completeExceptionally(throwable);
+                    }
+                }
+            });
+        startQueuedAsync(context);
+        return result;
+    }
+
+    static public int executeWithInputFile(CallContext context, java.io.File process_input_file, String[] outerr, String working_folder, String... command_array) {
+        SystemProcess sp = new SystemProcess(context, command_array, working_folder);
+        sp.setProcessInputFile(context, process_input_file);
+        sp.start(context, null, outerr == null ? true : false, false, outerr != null ? true : false, outerr == null ? true : false, false, outerr != null ? true : false, false);
+        sp.wait(context);
+        if (outerr != null) {
+            outerr[0] = sp.getProcessOutputAsString(context, true);
+            outerr[1] = sp.getProcessErrorAsString(context, true);
+        }
+        return sp.getExitValue(context);
+    }
+
     static public InputStream createInputStreamFromText(CallContext context, String data) {
         return new ByteArrayInputStream(data.getBytes());
     }
@@ -0,0 +1,43 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+/**
+   Receives timing and volume of SystemProcess executions, see
+   SystemProcess.setMetrics; called from process and pump threads, so
+   implementations have to be thread safe and cheap.
+ */
+public interface SystemProcessMetrics {
+
+    /**
+       spawn_nanos: time needed by the OS to create the process, 0 if
+       unknown (e.g. pipeline stages)
+     */
+    public void notifyStarted(CallContext context, SystemProcess process, long spawn_nanos);
+
+    public void notifyExited(CallContext context, SystemProcess process, long run_nanos);
+
+    /**
+       drain_nanos: time between exit of the process and its listeners
+       reaching end of stream
+     */
+    public void notifyFinished(CallContext context, SystemProcess process, int exit_value, long drain_nanos, long bytes_in, long bytes_out, long bytes_error);
+
+    public void notifyTimedOut(CallContext context, SystemProcess process);
+
+    public void notifyKilled(CallContext context, SystemProcess process);
+}
@@ -0,0 +1,218 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+   A chain of processes (cmd1 | cmd2 | cmd3) connected directly by the
+   operating system, via ProcessBuilder.startPipeline; data between the
+   stages does not pass through the JVM.
+
+   Input is fed to the first stage, stdout is tapped from the last stage
+   only; stderr of all stages is tapped, collected stderr is concatenated
+   in stage order. As in a shell, the exit value of the pipeline is that
+   of the last stage, see getExitValues for all of them.
+ */
+public class SystemProcessPipeline implements ManagedResource {
+
+    protected SystemProcess[] stages;
+
+    public SystemProcessPipeline(CallContext context, String working_folder, String[]... command_arrays) {
+        this.stages = new SystemProcess[command_arrays.length];
+        for (int i=0; i<command_arrays.length; i++) {
+            this.stages[i] = new SystemProcess(context, command_arrays[i], working_folder);
+        }
+    }
+
+    /**
+       Stages not started yet; per stage settings like setCaptureBytes or
+       setCollectLimit are kept, setProcessInputFile is only valid for the
+       first stage.
+     */
+    public SystemProcessPipeline(CallContext context, SystemProcess... stages) {
+        this.stages = stages;
+    }
+
+    public int getStageCount(CallContext context) {
+        return this.stages.length;
+    }
+
+    public SystemProcess getStage(CallContext context, int index) {
+        return this.stages[index];
+    }
+
+    public SystemProcess getLastStage(CallContext context) {
+        return this.stages[this.stages.length - 1];
+    }
+
+    public void setProcessInputFile(CallContext context, java.io.File process_input_file) {
+        this.stages[0].setProcessInputFile(context, process_input_file);
+    }
+
+    protected String getDescription(CallContext context) {
+        StringBuilder description = new StringBuilder();
+        for (SystemProcess stage : this.stages) {
+            if (description.length() > 0) { description.append(" | "); }
+            description.append(stage.command != null ? stage.command : StringUtilities.join(context, stage.command_array, " ", true));
+        }
+        return description.toString();
+    }
+
+    public InputStream start(CallContext context, InputStream process_input_arg, boolean dump_to_console, boolean wait) {
+        this.start(context, process_input_arg, dump_to_console, true, false, dump_to_console, true, false, wait);
+        return this.getProcessOutputAsStream(context);
+    }
+
+    public void start(CallContext context,
+                      InputStream process_input_arg,
+                      boolean write_stdout_to_stdout,
+                      boolean write_stdout_to_piped_stream,
+                      boolean write_stdout_to_string_builder,
+                      boolean write_stderr_to_stderr,
+                      boolean write_stderr_to_piped_stream,
+                      boolean write_stderr_to_string_builder,
+                      boolean wait) {
+        if (this.stages.length == 0) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Process pipeline without stages");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+
+        List<ProcessBuilder> process_builders = new ArrayList<ProcessBuilder>(this.stages.length);
+        for (SystemProcess stage : this.stages) {
+            process_builders.add(stage.createProcessBuilder(context));
+        }
+
+        List<Process> processes;
+        try {
+            processes = ProcessBuilder.startPipeline(process_builders);
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwConfigurationError(context, ioe, "External process pipeline '%(command)' could not be started", "command", this.getDescription(context));
+            throw (ExceptionConfigurationError) null; // compiler insists
+        } catch (IllegalArgumentException iae) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, iae, "External process pipeline '%(command)' has conflicting redirects", "command", this.getDescription(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+
+        int last = this.stages.length - 1;
+        for (int i=0; i<=last; i++) {
+            SystemProcess stage = this.stages[i];
+            stage.attachProcess(context, processes.get(i));
+            // stdout of all but the last stage is connected to the next
+            // stage by the OS, the listeners see end of stream immediately
+            stage.start(context,
+                        i == 0 ? process_input_arg : null,
+                        i == last ? write_stdout_to_stdout : false,
+                        i == last ? write_stdout_to_piped_stream : false,
+                        i == last ? write_stdout_to_string_builder : false,
+                        write_stderr_to_stderr,
+                        i == last ? write_stderr_to_piped_stream : false,
+                        write_stderr_to_string_builder,
+                        false);
+        }
+
+        if (wait) {
+            this.wait(context);
+        }
+    }
+
+    public void wait(CallContext context) {
+        for (SystemProcess stage : this.stages) {
+            stage.wait(context);
+        }
+    }
+
+    public int getExitValue(CallContext context) {
+        return this.getLastStage(context).getExitValue(context);
+    }
+
+    public int[] getExitValues(CallContext context) {
+        int[] exit_values = new int[this.stages.length];
+        for (int i=0; i<this.stages.length; i++) {
+            exit_values[i] = this.stages[i].getExitValue(context);
+        }
+        return exit_values;
+    }
+
+    public InputStream getProcessOutputAsStream(CallContext context) {
+        return this.getLastStage(context).getProcessOutputAsStream(context);
+    }
+
+    public String getProcessOutputAsString(CallContext context, boolean clear) {
+        return this.getLastStage(context).getProcessOutputAsString(context, clear);
+    }
+
+    /**
+       Stderr of the last stage only, since the streams of the stages
+       cannot be merged.
+     */
+    public InputStream getProcessErrorAsStream(CallContext context) {
+        return this.getLastStage(context).getProcessErrorAsStream(context);
+    }
+
+    public String getProcessErrorAsString(CallContext context, boolean clear) {
+        StringBuilder error = null;
+        for (SystemProcess stage : this.stages) {
+            String stage_error = stage.getProcessErrorAsString(context, clear);
+            if (stage_error != null) {
+                if (error == null) { error = new StringBuilder(); }
+                error.append(stage_error);
+            }
+        }
+        return error == null ? null : error.toString();
+    }
+
+    /**
+       Completes when all stages have exited and their listeners have
+       drained, with the result of the last stage.
+     */
+    public CompletableFuture<SystemProcessResult> getCompletion(CallContext context) {
+        CompletableFuture<?>[] completions = new CompletableFuture<?>[this.stages.length];
+        for (int i=0; i<this.stages.length; i++) {
+            completions[i] = this.stages[i].getCompletion(context);
+        }
+        final CompletableFuture<SystemProcessResult> last = this.getLastStage(context).getCompletion(context);
+        return CompletableFuture.allOf(completions).thenCompose(done -> last);
+    }
+
+    public void release(CallContext context) {
+        for (SystemProcess stage : this.stages) {
+            stage.release(context);
+        }
+    }
+
+    static public int execute(CallContext context, InputStream process_input, String[] outerr, String working_folder, String[]... command_arrays) {
+        SystemProcessPipeline spp = new SystemProcessPipeline(context, working_folder, command_arrays);
+        spp.start(context, process_input, outerr == null ? true : false, false, outerr != null ? true : false, outerr == null ? true : false, false, outerr != null ? true : false, false);
+        spp.wait(context);
+        if (outerr != null) {
+            outerr[0] = spp.getProcessOutputAsString(context, true);
+            outerr[1] = spp.getProcessErrorAsString(context, true);
+        }
+        return spp.getExitValue(context);
+    }
+}
@@ -0,0 +1,328 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Keeps up to 'size' long living worker processes of the same command
+   and passes requests to them, instead of starting a new process per
+   request.
+
+   Workers have to answer each request with exactly one response, using
+   one of these protocols on stdin/stdout (UTF-8):
+
+     line             request and response are single lines
+     length prefixed  request and response are preceded by a line
+                      containing their length in bytes
+
+   Workers are replaced if they died, failed a health check, or served
+   'max_requests_per_worker' requests; requests wait in a queue if all
+   workers are busy. A worker which does not respond within the
+   response timeout is replaced, too.
+ */
+public class SystemProcessPool implements ManagedResource {
+
+    static final public Class _class = SystemProcessPool.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class); };
+
+    protected String[] command_array;
+    protected String   working_folder;
+    protected int      size;
+
+    protected boolean  length_prefixed;
+    protected int      max_requests_per_worker;
+    protected String   health_check_request;
+    protected long     health_check_interval_ms;
+    protected long     queue_timeout_ms;
+    protected long     response_timeout_ms;
+
+    // one permit per worker in use, so that waiting requests proceed as
+    // soon as a worker is returned or discarded
+    protected Semaphore                   slots;
+    protected LinkedBlockingQueue<Worker> idle_workers;
+    protected int                         worker_count;
+    protected volatile boolean            released;
+
+    public SystemProcessPool(CallContext context, int size, String working_folder, String... command_array) {
+        this.command_array            = command_array;
+        this.working_folder           = working_folder;
+        this.size                     = size;
+        this.length_prefixed          = false;
+        this.max_requests_per_worker  = config.get(context, "MaxRequestsPerWorker", 1000);
+        this.health_check_interval_ms = config.get(context, "HealthCheckInterval", 60000);
+        this.queue_timeout_ms         = config.get(context, "QueueTimeout", 60000);
+        this.response_timeout_ms      = config.get(context, "ResponseTimeout", 60000);
+        this.slots                    = new Semaphore(size, true);
+        this.idle_workers             = new LinkedBlockingQueue<Worker>();
+    }
+
+    public void setLengthPrefixed(CallContext context, boolean length_prefixed) {
+        this.length_prefixed = length_prefixed;
+    }
+
+    public void setMaxRequestsPerWorker(CallContext context, int max_requests_per_worker) {
+        this.max_requests_per_worker = max_requests_per_worker;
+    }
+
+    /**
+       Request sent to a worker which has been idle for longer than the
+       health check interval, before it is used again; the worker is
+       replaced if it does not answer.
+     */
+    public void setHealthCheck(CallContext context, String health_check_request, long health_check_interval_ms) {
+        this.health_check_request     = health_check_request;
+        this.health_check_interval_ms = health_check_interval_ms;
+    }
+
+    public void setQueueTimeout(CallContext context, long queue_timeout_ms) {
+        this.queue_timeout_ms = queue_timeout_ms;
+    }
+
+    /**
+       Time a worker may take for a response, 0 means no timeout.
+     */
+    public void setResponseTimeout(CallContext context, long response_timeout_ms) {
+        this.response_timeout_ms = response_timeout_ms;
+    }
+
+    protected class Worker {
+        protected SystemProcess    process;
+        protected OutputStream     stdin;
+        protected InputStream      stdout;
+        protected int              requests;
+        protected long             last_used;
+        protected volatile boolean timed_out;
+
+        protected Worker(CallContext context) {
+            this.process = new SystemProcess(context, command_array, working_folder);
+            this.process.setCaptureBytes(context, true);
+            this.process.start(context, null, false, true, false, true, false, false, false);
+            this.stdin     = this.process.getProcessInputAsStream(context);
+            this.stdout    = new BufferedInputStream(this.process.getProcessOutputAsStream(context));
+            this.last_used = System.currentTimeMillis();
+        }
+
+        protected String send(CallContext context, String request) throws IOException {
+            // a blocked read is ended by closing the pipe it reads from
+            ScheduledFuture<?> timer = response_timeout_ms <= 0 ? null : SystemProcess.getTimeoutScheduler(context).schedule(new Runnable() {
+                    public void run() {
+                        timed_out = true;
+                        try {
+                            stdout.close();
+                        } catch (IOException ioe) {
+                            // closing the pipe does not fail
+                        }
+                    }
+                }, response_timeout_ms, TimeUnit.MILLISECONDS);
+            try {
+                return this.doSend(context, request);
+            } catch (IOException ioe) {
+                if (this.timed_out) {
+                    throw new InterruptedIOException("Worker did not respond within " + response_timeout_ms + " ms");
+                }
+                throw ioe;
+            } finally {
+                if (timer != null) { timer.cancel(false); }
+            }
+        }
+
+        protected String doSend(CallContext context, String request) throws IOException {
+            byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+            if (length_prefixed) {
+                this.stdin.write((bytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+                this.stdin.write(bytes);
+            } else {
+                this.stdin.write(bytes);
+                this.stdin.write('\n');
+            }
+            this.stdin.flush();
+
+            String response;
+            if (length_prefixed) {
+                String header = this.readLine(context);
+                int length;
+                try {
+                    length = Integer.parseInt(header.trim());
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("Invalid response length '" + header + "'");
+                }
+                byte[] data = new byte[length];
+                int offset = 0;
+                while (offset < length) {
+                    int n = this.stdout.read(data, offset, length - offset);
+                    if (n == -1) { throw new EOFException("Worker closed output"); }
+                    offset += n;
+                }
+                response = new String(data, StandardCharsets.UTF_8);
+            } else {
+                response = this.readLine(context);
+            }
+            this.requests++;
+            this.last_used = System.currentTimeMillis();
+            return response;
+        }
+
+        protected String readLine(CallContext context) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = this.stdout.read()) != '\n') {
+                if (c == -1) { throw new EOFException("Worker closed output"); }
+                line.write(c);
+            }
+            int length = line.size();
+            byte[] bytes = line.toByteArray();
+            if (length > 0 && bytes[length - 1] == '\r') { length--; }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        protected boolean isHealthy(CallContext context) {
+            if (this.process.isFinished(context)) { return false; }
+            if (health_check_request != null && System.currentTimeMillis() - this.last_used > health_check_interval_ms) {
+                try {
+                    this.send(context, health_check_request);
+                } catch (IOException ioe) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected void destroy(CallContext context) {
+            try {
+                this.stdin.close();
+            } catch (IOException ioe) {
+                // process may already be gone
+            }
+            this.process.release(context);
+            this.process.closeOutputAndErrorIO(context);
+        }
+    }
+
+    /**
+       Returns an idle or a new worker; the caller holds a slot, so with
+       no idle worker there is room for a new one.
+     */
+    protected Worker acquireWorker(CallContext context) {
+        while (true) {
+            if (this.released) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Process pool '%(command)' already released", "command", StringUtilities.join(context, this.command_array, " ", true));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+            Worker worker = this.idle_workers.poll();
+            if (worker == null) {
+                synchronized (this) {
+                    this.worker_count++;
+                }
+                try {
+                    return new Worker(context);
+                } catch (RuntimeException re) {
+                    synchronized (this) { this.worker_count--; }
+                    throw re;
+                }
+            }
+            if (worker.isHealthy(context)) {
+                return worker;
+            }
+            if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "Process pool '%(command)', replacing unhealthy worker", "command", StringUtilities.join(context, this.command_array, " ", true)); }
+            this.discardWorker(context, worker);
+        }
+    }
+
+    protected void acquireSlot(CallContext context) {
+        boolean acquired;
+        try {
+            acquired = this.slots.tryAcquire(this.queue_timeout_ms, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ie, "Interrupted while waiting for worker of process pool '%(command)'", "command", StringUtilities.join(context, this.command_array, " ", true));
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+        if (acquired == false) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, "No worker of process pool '%(command)' available within %(timeout) ms", "command", StringUtilities.join(context, this.command_array, " ", true), "timeout", t.s(this.queue_timeout_ms));
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    protected void returnWorker(CallContext context, Worker worker) {
+        if (this.released || worker.requests >= this.max_requests_per_worker) {
+            this.discardWorker(context, worker);
+        } else {
+            this.idle_workers.add(worker);
+        }
+    }
+
+    protected void discardWorker(CallContext context, Worker worker) {
+        worker.destroy(context);
+        synchronized (this) {
+            this.worker_count--;
+        }
+    }
+
+    public String execute(CallContext context, String request) {
+        this.acquireSlot(context);
+        try {
+            Worker worker = this.acquireWorker(context);
+            try {
+                String response = worker.send(context, request);
+                this.returnWorker(context, worker);
+                return response;
+            } catch (IOException ioe) {
+                this.discardWorker(context, worker);
+                CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Worker of process pool '%(command)' failed", "command", StringUtilities.join(context, this.command_array, " ", true));
+                throw (ExceptionEnvironmentError) null; // compiler insists
+            } catch (RuntimeException re) {
+                this.discardWorker(context, worker);
+                throw re;
+            }
+        } finally {
+            this.slots.release();
+        }
+    }
+
+    public void release(CallContext context) {
+        this.released = true;
+        Worker worker;
+        while ((worker = this.idle_workers.poll()) != null) {
+            this.discardWorker(context, worker);
+        }
+    }
+}
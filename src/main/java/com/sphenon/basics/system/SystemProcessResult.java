@@ -0,0 +1,79 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+
+public class SystemProcessResult {
+
+    protected SystemProcess process;
+    protected int           exit_value;
+    protected String        output;
+    protected String        error;
+    protected long          run_nanos;
+    protected long          total_nanos;
+    protected boolean       timed_out;
+
+    public SystemProcessResult(CallContext context, SystemProcess process, int exit_value, String output, String error, long run_nanos, long total_nanos, boolean timed_out) {
+        this.process     = process;
+        this.exit_value  = exit_value;
+        this.output      = output;
+        this.error       = error;
+        this.run_nanos   = run_nanos;
+        this.total_nanos = total_nanos;
+        this.timed_out   = timed_out;
+    }
+
+    public SystemProcess getProcess(CallContext context) {
+        return this.process;
+    }
+
+    public int getExitValue(CallContext context) {
+        return this.exit_value;
+    }
+
+    /**
+       Collected stdout, or null if not configured to be collected.
+     */
+    public String getOutput(CallContext context) {
+        return this.output;
+    }
+
+    /**
+       Collected stderr, or null if not configured to be collected.
+     */
+    public String getError(CallContext context) {
+        return this.error;
+    }
+
+    /**
+       Time from start of the process until its exit.
+     */
+    public long getRunMillis(CallContext context) {
+        return this.run_nanos / 1000000;
+    }
+
+    /**
+       Time from start of the process until its output has been read
+       completely.
+     */
+    public long getTotalMillis(CallContext context) {
+        return this.total_nanos / 1000000;
+    }
+
+    public boolean isTimedOut(CallContext context) {
+        return this.timed_out;
+    }
+}
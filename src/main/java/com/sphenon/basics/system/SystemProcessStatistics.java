@@ -0,0 +1,202 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import javax.management.InstanceAlreadyExistsException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   Default SystemProcessMetrics, aggregating counters and timings in
+   total and per command (name of the executable); available via JMX as
+   'com.sphenon.basics.system:type=SystemProcessStatistics' if
+   'RegisterMBean' is set (default).
+ */
+public class SystemProcessStatistics implements SystemProcessMetrics, SystemProcessStatisticsMBean {
+
+    static final public Class _class = SystemProcessStatistics.class;
+
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(_class); };
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), _class); };
+
+    static protected SystemProcessStatistics singleton;
+
+    static public synchronized SystemProcessStatistics getSingleton(CallContext context) {
+        if (singleton == null) {
+            singleton = new SystemProcessStatistics(context);
+            if (config.get(context, "RegisterMBean", true)) {
+                singleton.registerMBean(context, "com.sphenon.basics.system:type=SystemProcessStatistics");
+            }
+        }
+        return singleton;
+    }
+
+    protected class CommandStatistics {
+        protected LongAdder  executions = new LongAdder();
+        protected LongAdder  failures   = new LongAdder();
+        protected LongAdder  run_nanos  = new LongAdder();
+        protected AtomicLong max_run_nanos = new AtomicLong();
+    }
+
+    protected LongAdder  started       = new LongAdder();
+    protected LongAdder  finished      = new LongAdder();
+    protected LongAdder  failed        = new LongAdder();
+    protected LongAdder  timed_out     = new LongAdder();
+    protected LongAdder  killed        = new LongAdder();
+    protected LongAdder  exited        = new LongAdder();
+    protected AtomicLong running       = new AtomicLong();
+    protected AtomicLong peak_running  = new AtomicLong();
+    protected LongAdder  spawn_nanos   = new LongAdder();
+    protected LongAdder  spawn_count   = new LongAdder();
+    protected LongAdder  run_nanos     = new LongAdder();
+    protected AtomicLong max_run_nanos = new AtomicLong();
+    protected LongAdder  drain_nanos   = new LongAdder();
+    protected LongAdder  bytes_in      = new LongAdder();
+    protected LongAdder  bytes_out     = new LongAdder();
+    protected LongAdder  bytes_error   = new LongAdder();
+
+    protected ConcurrentHashMap<String,CommandStatistics> commands = new ConcurrentHashMap<String,CommandStatistics>();
+
+    public SystemProcessStatistics(CallContext context) {
+    }
+
+    public void registerMBean(CallContext context, String object_name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(object_name));
+        } catch (InstanceAlreadyExistsException iaee) {
+            // e.g. loaded by several class loaders, first one wins
+        } catch (Exception e) {
+            if ((notification_level & Notifier.MONITORING) != 0) { NotificationContext.sendCaution(context, "Could not register MBean '%(name)': %(reason)", "name", object_name, "reason", e); }
+        }
+    }
+
+    static protected void updateMaximum(AtomicLong maximum, long value) {
+        long current;
+        while (value > (current = maximum.get())) {
+            if (maximum.compareAndSet(current, value)) { return; }
+        }
+    }
+
+    protected CommandStatistics getCommandStatistics(CallContext context, SystemProcess process) {
+        String name = process.getCommandName(context);
+        CommandStatistics statistics = this.commands.get(name);
+        if (statistics == null) {
+            statistics = new CommandStatistics();
+            CommandStatistics existing = this.commands.putIfAbsent(name, statistics);
+            if (existing != null) { statistics = existing; }
+        }
+        return statistics;
+    }
+
+    public void notifyStarted(CallContext context, SystemProcess process, long spawn_nanos) {
+        this.started.increment();
+        if (spawn_nanos > 0) {
+            this.spawn_nanos.add(spawn_nanos);
+            this.spawn_count.increment();
+        }
+        updateMaximum(this.peak_running, this.running.incrementAndGet());
+    }
+
+    public void notifyExited(CallContext context, SystemProcess process, long run_nanos) {
+        this.running.decrementAndGet();
+        this.exited.increment();
+        this.run_nanos.add(run_nanos);
+        updateMaximum(this.max_run_nanos, run_nanos);
+        CommandStatistics statistics = this.getCommandStatistics(context, process);
+        statistics.executions.increment();
+        statistics.run_nanos.add(run_nanos);
+        updateMaximum(statistics.max_run_nanos, run_nanos);
+    }
+
+    public void notifyFinished(CallContext context, SystemProcess process, int exit_value, long drain_nanos, long bytes_in, long bytes_out, long bytes_error) {
+        this.finished.increment();
+        if (exit_value != 0) {
+            this.failed.increment();
+            this.getCommandStatistics(context, process).failures.increment();
+        }
+        this.drain_nanos.add(drain_nanos);
+        this.bytes_in.add(bytes_in);
+        this.bytes_out.add(bytes_out);
+        this.bytes_error.add(bytes_error);
+    }
+
+    public void notifyTimedOut(CallContext context, SystemProcess process) {
+        this.timed_out.increment();
+    }
+
+    public void notifyKilled(CallContext context, SystemProcess process) {
+        this.killed.increment();
+    }
+
+    static protected double millis(long nanos, long count) {
+        return count == 0 ? 0.0 : (nanos / (double) count) / 1000000.0;
+    }
+
+    public long   getStartedCount()       { return this.started.sum(); }
+    public long   getFinishedCount()      { return this.finished.sum(); }
+    public long   getFailedCount()        { return this.failed.sum(); }
+    public long   getTimedOutCount()      { return this.timed_out.sum(); }
+    public long   getKilledCount()        { return this.killed.sum(); }
+    public long   getRunningCount()       { return this.running.get(); }
+    public long   getPeakRunningCount()   { return this.peak_running.get(); }
+    public double getAverageSpawnMillis() { return millis(this.spawn_nanos.sum(), this.spawn_count.sum()); }
+    public double getAverageRunMillis()   { return millis(this.run_nanos.sum(), this.exited.sum()); }
+    public double getAverageDrainMillis() { return millis(this.drain_nanos.sum(), this.finished.sum()); }
+    public double getMaximumRunMillis()   { return millis(this.max_run_nanos.get(), 1); }
+    public long   getBytesIn()            { return this.bytes_in.sum(); }
+    public long   getBytesOut()           { return this.bytes_out.sum(); }
+    public long   getBytesError()         { return this.bytes_error.sum(); }
+
+    public String[] getCommandStatistics() {
+        List<String> result = new ArrayList<String>();
+        for (java.util.Map.Entry<String,CommandStatistics> entry : this.commands.entrySet()) {
+            CommandStatistics statistics = entry.getValue();
+            long executions = statistics.executions.sum();
+            result.add(entry.getKey() + ": executions " + executions + ", failures " + statistics.failures.sum() + ", average " + String.format("%.1f", millis(statistics.run_nanos.sum(), executions)) + " ms, maximum " + String.format("%.1f", millis(statistics.max_run_nanos.get(), 1)) + " ms");
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+       Resets all counters except the number of running processes.
+     */
+    public void reset() {
+        for (LongAdder adder : new LongAdder[] { started, finished, failed, timed_out, killed, exited, spawn_nanos, spawn_count, run_nanos, drain_nanos, bytes_in, bytes_out, bytes_error }) {
+            adder.reset();
+        }
+        this.peak_running.set(this.running.get());
+        this.max_run_nanos.set(0);
+        this.commands.clear();
+    }
+}
@@ -0,0 +1,44 @@
+package com.sphenon.basics.system;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+public interface SystemProcessStatisticsMBean {
+
+    public long getStartedCount();
+    public long getFinishedCount();
+    public long getFailedCount();
+    public long getTimedOutCount();
+    public long getKilledCount();
+
+    public long getRunningCount();
+    public long getPeakRunningCount();
+
+    public double getAverageSpawnMillis();
+    public double getAverageRunMillis();
+    public double getAverageDrainMillis();
+    public double getMaximumRunMillis();
+
+    public long getBytesIn();
+    public long getBytesOut();
+    public long getBytesError();
+
+    /**
+       One entry per command: name, executions, failures, average and
+       maximum run time in ms.
+     */
+    public String[] getCommandStatistics();
+
+    public void reset();
+}
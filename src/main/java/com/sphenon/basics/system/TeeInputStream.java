@@ -21,6 +21,7 @@ public class TeeInputStream extends InputStream {
     protected InputStream input_stream;
     protected OutputStream[] active_output_streams;
     protected OutputStream[] all_output_streams;
+    protected volatile long  count;
  
     public TeeInputStream(InputStream input_stream, OutputStream... output_streams) {
         this.input_stream = input_stream;
@@ -33,6 +34,13 @@ public class TeeInputStream extends InputStream {
         }
     }
 
+    /**
+       Number of bytes read so far.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
     public void setStreamState(int i, boolean enabled) {
         this.active_output_streams[i] = enabled ? this.all_output_streams[i] : null;
     }
@@ -52,6 +60,7 @@ public class TeeInputStream extends InputStream {
     public int read() throws IOException {
         int c = this.input_stream.read();
         if (c != -1) {
+            this.count++;
             if (this.active_output_streams != null) {
                 for (OutputStream output_stream : active_output_streams) {
                     if (output_stream != null) {
@@ -65,6 +74,7 @@ public class TeeInputStream extends InputStream {
     public int read(byte[] b) throws IOException {
         int n = this.input_stream.read(b);
         if (n != -1) {
+            this.count += n;
             if (this.active_output_streams != null) {
                 for (OutputStream output_stream : active_output_streams) {
                     if (output_stream != null) {
@@ -78,6 +88,7 @@ public class TeeInputStream extends InputStream {
     public int read(byte[] b, int off, int len) throws IOException {
         int n = this.input_stream.read(b, off, len);
         if (n != -1) {
+            this.count += n;
             if (this.active_output_streams != null) {
                 for (OutputStream output_stream : active_output_streams) {
                     if (output_stream != null) {
@@ -0,0 +1,197 @@
+package com.sphenon.basics.system.test;
+
+/****************************************************************************
+  Copyright 2001-2024 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.testing.*;
+
+import com.sphenon.basics.system.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Arrays;
+
+public class Test_DelegateGenerator extends com.sphenon.basics.testing.classes.TestBase {
+    static protected long notification_level;
+    static public    long adjustNotificationLevel(long new_level) { long old_level = notification_level; notification_level = new_level; return old_level; }
+    static public    long getNotificationLevel() { return notification_level; }
+    static { notification_level = NotificationLocationContext.getLevel(RootContext.getInitialisationContext(), "com.sphenon.basics.system.test.Test_DelegateGenerator"); };
+
+    public Test_DelegateGenerator (CallContext context) {
+    }
+
+    public String getId(CallContext context) {
+        if (this.id == null) {
+            this.id = "SystemDelegateGenerator";
+        }
+        return this.id;
+    }
+
+    public interface Primitives {
+        public boolean  negate(boolean z);
+        public byte     incrementByte(byte b);
+        public char     nextChar(char c);
+        public short    incrementShort(short s);
+        public int      add(int a, int b);
+        public long     mix(int a, long b, double c, int d);
+        public float    half(float f);
+        public double   twice(double d);
+    }
+
+    public interface Various {
+        public int[]    reverse(int[] values);
+        public String[] split(String text);
+        public void     remember(String text);
+        public String   recall();
+        public String   name();
+        default public String greet(String whom) { return "hello " + whom + " from " + this.name(); }
+    }
+
+    public static class Target implements Primitives, Various {
+        protected String name;
+        protected String remembered;
+
+        public Target(String name) { this.name = name; }
+
+        public boolean  negate(boolean z)                       { return ! z; }
+        public byte     incrementByte(byte b)                   { return (byte) (b + 1); }
+        public char     nextChar(char c)                        { return (char) (c + 1); }
+        public short    incrementShort(short s)                 { return (short) (s + 1); }
+        public int      add(int a, int b)                       { return a + b; }
+        public long     mix(int a, long b, double c, int d)     { return a + b + (long) c + d; }
+        public float    half(float f)                           { return f / 2; }
+        public double   twice(double d)                         { return d * 2; }
+
+        public int[]    reverse(int[] values) {
+            int[] result = new int[values.length];
+            for (int i=0; i<values.length; i++) { result[i] = values[values.length - 1 - i]; }
+            return result;
+        }
+        public String[] split(String text)                      { return text.split(","); }
+        public void     remember(String text)                   { this.remembered = text; }
+        public String   recall()                                { return this.remembered; }
+        public String   name()                                  { return this.name; }
+
+        public boolean  equals(Object other)                    { return other instanceof Target && ((Target) other).name.equals(this.name); }
+        public int      hashCode()                              { return this.name.hashCode(); }
+        public String   toString()                              { return "Target " + this.name; }
+    }
+
+    // intercepts add, negating the result, and recall, counting calls
+    public static class Counter implements StaticInterceptor {
+        public int count;
+
+        public boolean matches(Class target_class, Method method) {
+            return method.getName().equals("add") || method.getName().equals("recall");
+        }
+
+        public boolean matches(Object target, Method method, Object[] arguments) {
+            return this.matches(target.getClass(), method);
+        }
+
+        public Object handleInvocation(Object proxy, Delegate delegate, Object target, Method method, Object[] arguments) throws Throwable {
+            this.count++;
+            Object result = method.invoke(target, arguments);
+            return result instanceof Integer ? - (Integer) result : result;
+        }
+    }
+
+    protected String check(CallContext context, String backend, Object delegate, Counter counter) {
+        Primitives p = (Primitives) delegate;
+        Various    v = (Various) delegate;
+
+        if (p.negate(true) != false)                            { return backend + ": negate"; }
+        if (p.incrementByte((byte) 127) != (byte) -128)         { return backend + ": incrementByte"; }
+        if (p.nextChar('a') != 'b')                             { return backend + ": nextChar"; }
+        if (p.incrementShort((short) 41) != 42)                 { return backend + ": incrementShort"; }
+        if (p.mix(1, 10000000000L, 2.5, 3) != 10000000006L)     { return backend + ": mix"; }
+        if (p.half(3.0f) != 1.5f)                               { return backend + ": half"; }
+        if (p.twice(1.25) != 2.5)                               { return backend + ": twice"; }
+
+        if (Arrays.equals(v.reverse(new int[] { 1, 2, 3 }), new int[] { 3, 2, 1 }) == false) { return backend + ": reverse"; }
+        if (Arrays.equals(v.split("a,b"), new String[] { "a", "b" }) == false) { return backend + ": split"; }
+        v.remember("something");
+        if ("something".equals(v.recall()) == false)            { return backend + ": void and recall"; }
+        if ("hello you from one".equals(v.greet("you")) == false) { return backend + ": default method"; }
+
+        Target equal = new Target("one");
+        if (delegate.equals(equal) == false)                    { return backend + ": equals"; }
+        if (delegate.hashCode() != equal.hashCode())            { return backend + ": hashCode"; }
+        if ("Target one".equals(delegate.toString()) == false)  { return backend + ": toString"; }
+
+        int count = counter.count;
+        if (p.add(2, 3) != -5)                                  { return backend + ": intercepted add"; }
+        if (counter.count != count + 1)                         { return backend + ": interceptor not called"; }
+        p.twice(1.0);
+        if (counter.count != count + 1)                         { return backend + ": interceptor called for twice"; }
+
+        return null;
+    }
+
+    public TestResult perform (CallContext context, TestRun test_run) {
+
+        try {
+
+            if (DelegateGenerator.isGeneratable(Target.class) == false) {
+                return new TestResult_Failure(context, "Target class is not generatable");
+            }
+
+            Counter generated_counter = new Counter();
+            Object  generated = DelegateGenerator.create(new Target("one"), generated_counter);
+            if (Proxy.isProxyClass(generated.getClass())) {
+                return new TestResult_Failure(context, "DelegateGenerator returned a Proxy");
+            }
+
+            Counter proxy_counter = new Counter();
+            Object  proxy = Delegate.create(new Target("one"), proxy_counter);
+
+            String failure;
+            if ((failure = this.check(context, "generated", generated, generated_counter)) != null) {
+                return new TestResult_Failure(context, failure);
+            }
+            if ((failure = this.check(context, "proxy", proxy, proxy_counter)) != null) {
+                return new TestResult_Failure(context, failure);
+            }
+            if (generated_counter.count != proxy_counter.count) {
+                return new TestResult_Failure(context, "Interceptor called " + generated_counter.count + " times for generated delegate, " + proxy_counter.count + " times for proxy");
+            }
+            if ((notification_level & Notifier.CHECKPOINT) != 0) { NotificationContext.sendTrace(context, Notifier.CHECKPOINT, "Generated and proxy delegates behave alike"); }
+
+            // a target replaced by an interceptor is used by direct calls, too
+            StaticInterceptor replacing = new StaticInterceptor() {
+                public boolean matches(Class target_class, Method method) { return method.getName().equals("recall"); }
+                public boolean matches(Object target, Method method, Object[] arguments) { return this.matches(target.getClass(), method); }
+                public Object handleInvocation(Object proxy, Delegate delegate, Object target, Method method, Object[] arguments) throws Throwable {
+                    delegate.setTarget(new Target("two"));
+                    return method.invoke(target, arguments);
+                }
+            };
+            for (Object delegate : new Object[] { DelegateGenerator.create(new Target("one"), replacing), Delegate.create(new Target("one"), replacing) }) {
+                ((Various) delegate).recall();
+                if ("two".equals(((Various) delegate).name()) == false) {
+                    return new TestResult_Failure(context, "Replaced target not used by " + delegate.getClass().getName());
+                }
+            }
+
+        } catch (Throwable t) {
+            return new TestResult_ExceptionRaised(context, t);
+        }
+
+        return TestResult.OK;
+    }
+}